@@ -1,77 +1,1699 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 public class PCY {
 
+    private final BasketSource baskets;
+    private final int threshold;
+    private final int b;
+
+    /**
+     * Compartments of every hash table: {@code b}, or for Multihash an equal share of {@code b} per table so that
+     * all tables together fit into the memory of a single PCY table.
+     */
+    private final int tableSize;
+    private final int threads;
+    private final Mode mode;
+    private final int hashes;
+    private final boolean stats;
+    private final int maxSize;
+    private final boolean keepBorder;
+    private final int chunks;
+    private final long chunkBytes;
+    private final double sampleRate;
+    private final double lowering;
+    private final long seed;
+    private final int retries;
+
+    /**
+     * Whether pairs are hashed and counted regardless of the order of their items in a basket. This is needed
+     * whenever the pairs feed frequent itemsets, where both orders of a pair are the same itemset.
+     */
+    private final boolean unorderedPairs;
+
+    private ItemTable itemCount = new ItemTable();
+    private PairCounter pairs = new PairCounter();
+
+    /**
+     * Frequent compartments of every hash table built so far, in the order of the tables.
+     */
+    private final List<BitSet> bitmaps = new ArrayList<>();
+    private boolean[] frequentItems;
+
+    /**
+     * Frequent items numbered in the order of their original ids, so that an itemset sorted by rank is also sorted
+     * by item id. {@code rankOf} maps a dense index to its rank, or {@code -1} for an infrequent item.
+     */
+    private int[] rankOf;
+    private int[] rankedItems;
+
+    private List<int[]> frequentPairs = List.of();
+
+    /**
+     * Frequent itemsets of size three and larger, one entry per size.
+     */
+    private final List<Level> levels = new ArrayList<>();
+
+    private PCY(BasketSource baskets, Options options) {
+        this.baskets = baskets;
+        this.threshold = (int) Math.floor(baskets.s * baskets.n);
+        this.b = baskets.b;
+        this.threads = options.threads;
+        this.mode = options.mode;
+        this.hashes = options.mode == Mode.MULTISTAGE || options.mode == Mode.MULTIHASH ? options.hashes : 1;
+        this.stats = options.stats;
+        this.maxSize = options.maxSize;
+        this.keepBorder = options.keepBorder;
+        this.chunks = options.chunks;
+        this.chunkBytes = options.chunkBytes;
+        this.sampleRate = options.sampleRate;
+        this.lowering = options.lowering;
+        this.seed = options.seed;
+        this.retries = options.retries;
+        this.tableSize = mode == Mode.MULTIHASH ? b / hashes : b;
+        if (tableSize < 1) {
+            throw new IllegalArgumentException("Fewer compartments than hash tables: " + b + " < " + hashes);
+        }
+        this.unorderedPairs = options.maxSize > 2 || options.local;
+    }
+
     public static void main(String[] args) throws IOException {
-        int b, threshold;
+        final Options options = Options.parse(args);
+
+        final BasketSource baskets = options.path != null ?
+            MappedBasketFile.open(options.path) :
+            InMemoryBaskets.read(new BufferedReader(new InputStreamReader(System.in)));
 
-        final List<List<Integer>> baskets = new ArrayList<>();
-        final Map<Integer, Integer> itemCount = new HashMap<>();
-        final Map<Integer, Integer> compartments = new HashMap<>();
-        final Map<List<Integer>, Integer> pairs = new HashMap<>();
+        final PCY pcy = new PCY(baskets, options);
 
-        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
-            int n = Integer.parseInt(reader.readLine());
-            double s = Double.parseDouble(reader.readLine());
-            b = Integer.parseInt(reader.readLine());
-            threshold = (int) Math.floor(s * n);
+        pcy.process();
+    }
 
-            for (int i = 0; i < n; i++) {
-                final List<Integer> basket = Arrays.stream(reader.readLine().trim().split(" "))
-                    .map(Integer::parseInt)
-                    .collect(Collectors.toList());
+    public void process() throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(threads);
 
-                baskets.add(basket);
-                basket.forEach(item -> itemCount.compute(item, (key, val) -> val == null ? 1 : val + 1));
+        try {
+            switch (mode) {
+                case SON:
+                    son(pool);
+                    break;
+                case TOIVONEN:
+                    toivonen(pool);
+                    break;
+                default:
+                    mine(pool);
             }
+        } finally {
+            pool.shutdown();
         }
 
         final int itemCountSize = itemCount.size();
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        out.println(itemCountSize * (itemCountSize - 1) / 2);
+        out.println(pairs.size());
 
-        for (final List<Integer> basket : baskets) {
-            final int basketSize = basket.size();
-            for (int i = 0; i < basketSize; i++) {
-                for (int j = i + 1; j < basketSize; j++) {
-                    final int item1 = basket.get(i);
-                    final int item2 = basket.get(j);
+        final int[] counts = pairs.values();
+        Arrays.sort(counts);
+        for (int i = counts.length - 1; i >= 0; i--) {
+            out.println(counts[i]);
+        }
+
+        for (final Level level : levels) {
+            level.print(out, rankedItems);
+        }
+        out.flush();
+    }
+
+    private void mine(ForkJoinPool pool) throws IOException {
+        countItems(pool);
+
+        if (mode == Mode.MULTIHASH) {
+            countBuckets(pool, 0, hashes);
+        } else {
+            for (int table = 0; table < hashes; table++) {
+                countBuckets(pool, table, 1);
+            }
+        }
+
+        countPairs(pool);
+
+        frequentPairs = frequentPairs();
+        List<int[]> frequent = frequentPairs;
+        for (int k = 3; k <= maxSize; k++) {
+            frequent = countItemsets(pool, frequent, k);
+            if (frequent.isEmpty()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * SON: mines every chunk of the input in memory with the threshold computed for the chunk, then counts the union
+     * of the locally frequent itemsets in one pass over the whole input. An itemset that is frequent in the whole
+     * input is frequent in at least one chunk, so no frequent itemset is missed. Chunks hold about
+     * {@code --chunk-bytes} of the input (64 MiB by default) unless {@code --chunks} fixes their number; either way
+     * the chunks do not depend on the thread count, so the candidates are the same on every machine. At most
+     * {@code threads} chunks are loaded at the same time.
+     */
+    private void son(ForkJoinPool pool) throws IOException {
+        final int parts = chunks > 0 ? chunks : (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+            (baskets.bytes() + chunkBytes - 1) / chunkBytes));
+        final List<List<int[]>> candidates = new ArrayList<>();
+
+        for (int first = 0; first < parts; first += threads) {
+            final List<Callable<List<List<int[]>>>> tasks = new ArrayList<>(threads);
+
+            for (int part = first; part < Math.min(first + threads, parts); part++) {
+                final int index = part;
+
+                tasks.add(() -> mineChunk(pool, index, parts));
+            }
+
+            for (final List<List<int[]>> itemsets : invokeAll(pool, tasks)) {
+                union(candidates, itemsets);
+            }
+        }
+
+        verify(pool, candidates);
+    }
+
+    private List<List<int[]>> mineChunk(ForkJoinPool pool, int index, int parts) throws IOException {
+        final List<int[]> chunk = new ArrayList<>();
+        baskets.forEach(index, parts, (basket, size) -> chunk.add(Arrays.copyOf(basket, size)));
+
+        final PCY local = new PCY(new InMemoryBaskets(chunk.size(), baskets.s, b, chunk),
+            Options.local(1, maxSize, false));
+        local.mine(pool);
+
+        if (stats) {
+            System.err.printf(Locale.US, "chunk %d of %d: %d baskets, threshold %d, %d frequent pairs%n",
+                index + 1, parts, chunk.size(), local.threshold, local.frequentPairs.size());
+        }
+
+        return local.frequentItemsets();
+    }
+
+    /**
+     * Toivonen: mines a random sample with the support lowered by {@code lowering} and counts the itemsets frequent
+     * in the sample together with their negative border in one pass over the whole input. If an itemset of the
+     * negative border turns out to be frequent, the result may be incomplete: the whole attempt is repeated with the
+     * next seed up to {@code --retries} times (2 by default), and a warning is printed if the last one fails too.
+     */
+    private void toivonen(ForkJoinPool pool) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            final int misses = toivonen(pool, seed + attempt);
+            if (misses == 0) {
+                return;
+            }
+
+            if (attempt == retries) {
+                System.err.printf(Locale.US, "Toivonen: %d negative border itemsets are frequent, the result may be " +
+                    "incomplete; rerun with another --seed, a larger --sample or a smaller --lowering%n", misses);
+                return;
+            }
+
+            if (stats) {
+                System.err.printf(Locale.US, "Toivonen: %d negative border itemsets are frequent, retrying with " +
+                    "seed %d%n", misses, seed + attempt + 1);
+            }
+            itemCount = new ItemTable();
+            pairs = new PairCounter();
+            levels.clear();
+        }
+    }
+
+    /**
+     * One Toivonen attempt with the sample drawn by {@code sampleSeed}. Returns the number of itemsets of the
+     * negative border that are frequent in the whole input.
+     */
+    private int toivonen(ForkJoinPool pool, long sampleSeed) throws IOException {
+        final Random random = new Random(sampleSeed);
+        final List<int[]> sample = new ArrayList<>();
+        baskets.forEach(0, 1, (basket, size) -> {
+            if (random.nextDouble() < sampleRate) {
+                sample.add(Arrays.copyOf(basket, size));
+            }
+        });
+
+        final PCY local = new PCY(new InMemoryBaskets(sample.size(), baskets.s * lowering, b, sample),
+            Options.local(threads, maxSize, true));
+        local.mine(pool);
+
+        final List<List<int[]>> border = local.negativeBorder();
+        final List<List<int[]>> candidates = local.frequentItemsets();
+        union(candidates, border);
+
+        if (stats) {
+            System.err.printf(Locale.US, "sample: %d baskets, threshold %d, %d frequent pairs%n", sample.size(),
+                local.threshold, local.frequentPairs.size());
+        }
+
+        final Verification verification = verify(pool, candidates);
+
+        int misses = 0;
+        for (int i = 0, size = itemCount.size(); i < size; i++) {
+            if (itemCount.count(i) >= threshold && Arrays.binarySearch(local.rankedItems, itemCount.id(i)) < 0) {
+                System.err.printf(Locale.US, "negative border item %d is frequent%n", itemCount.id(i));
+                misses++;
+            }
+        }
+        for (int level = 0; level < border.size(); level++) {
+            for (final int[] itemset : border.get(level)) {
+                if (verification.count(level, itemset) >= threshold) {
+                    System.err.println("negative border itemset " + Arrays.toString(itemset) + " is frequent");
+                    misses++;
+                }
+            }
+        }
+
+        return misses;
+    }
+
+    /**
+     * Returns the frequent itemsets as item ids, pairs first and then one list per larger size.
+     */
+    private List<List<int[]>> frequentItemsets() {
+        final List<List<int[]>> itemsets = new ArrayList<>(levels.size() + 1);
+
+        itemsets.add(toItemIds(frequentPairs));
+        for (final Level level : levels) {
+            itemsets.add(toItemIds(level.itemsets));
+        }
+
+        return itemsets;
+    }
+
+    /**
+     * Returns the negative border of the frequent itemsets as item ids, pairs first and then one list per larger
+     * size: the itemsets that are not frequent although all of their immediate subsets are. Infrequent single items
+     * are left out, they are checked against the item counts instead.
+     */
+    private List<List<int[]>> negativeBorder() {
+        final List<List<int[]>> border = new ArrayList<>(levels.size() + 1);
+
+        final List<int[]> pairBorder = new ArrayList<>();
+        for (int first = 0; first < rankedItems.length; first++) {
+            for (int second = first + 1; second < rankedItems.length; second++) {
+                final int[] pair = {first, second};
+                if (Collections.binarySearch(frequentPairs, pair, Arrays::compare) < 0) {
+                    pairBorder.add(pair);
+                }
+            }
+        }
+        border.add(toItemIds(pairBorder));
+
+        for (final Level level : levels) {
+            border.add(toItemIds(level.border));
+        }
+
+        return border;
+    }
+
+    private List<int[]> toItemIds(List<int[]> itemsets) {
+        final List<int[]> result = new ArrayList<>(itemsets.size());
+
+        for (final int[] itemset : itemsets) {
+            final int[] ids = new int[itemset.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = rankedItems[itemset[i]];
+            }
+            result.add(ids);
+        }
+
+        return result;
+    }
+
+    private static void union(List<List<int[]>> target, List<List<int[]>> itemsets) {
+        for (int i = 0; i < itemsets.size(); i++) {
+            if (i == target.size()) {
+                target.add(new ArrayList<>());
+            }
+            target.get(i).addAll(itemsets.get(i));
+        }
+    }
+
+    /**
+     * Counts the items and the given candidate itemsets (item ids, pairs first) exactly in one pass over the whole
+     * input. The frequent pairs replace the PCY candidate pairs in the output and the frequent larger itemsets become
+     * the levels, so the result is printed in the same format as an exact run. Candidates that turn out not to be
+     * frequent are left out of the output.
+     */
+    private Verification verify(ForkJoinPool pool, List<List<int[]>> candidates) throws IOException {
+        final ItemTable ranks = new ItemTable();
+        rankedItems = candidates.stream()
+            .flatMap(List::stream)
+            .flatMapToInt(Arrays::stream)
+            .sorted()
+            .distinct()
+            .toArray();
+        for (final int item : rankedItems) {
+            ranks.add(item, 0);
+        }
+
+        final Verification verification = new Verification(ranks);
+        final CandidateTrie[] tries = new CandidateTrie[candidates.size()];
+        for (int level = 0; level < tries.length; level++) {
+            final List<int[]> itemsets = new ArrayList<>();
+            for (final int[] itemset : candidates.get(level)) {
+                itemsets.add(verification.toRanks(itemset));
+            }
+
+            itemsets.sort(Arrays::compare);
+            for (int i = itemsets.size() - 1; i > 0; i--) {
+                if (Arrays.equals(itemsets.get(i), itemsets.get(i - 1))) {
+                    itemsets.remove(i);
+                }
+            }
+
+            verification.itemsets.add(itemsets);
+            tries[level] = new CandidateTrie(itemsets, level + 2);
+        }
+
+        final int[][] counts = new int[tries.length][];
+        for (int level = 0; level < tries.length; level++) {
+            counts[level] = new int[tries[level].size()];
+        }
+        for (final VerificationPass pass : runPass(pool, () -> new VerificationPass(ranks, tries))) {
+            for (int i = 0, size = pass.items.size(); i < size; i++) {
+                itemCount.add(pass.items.id(i), pass.items.count(i));
+            }
+            for (int level = 0; level < tries.length; level++) {
+                for (int i = 0; i < counts[level].length; i++) {
+                    counts[level][i] += pass.counts[level][i];
+                }
+            }
+        }
+        verification.counts = counts;
+
+        if (!verification.itemsets.isEmpty()) {
+            final List<int[]> candidatePairs = verification.itemsets.get(0);
+            for (int i = 0; i < candidatePairs.size(); i++) {
+                if (counts[0][i] < threshold) {
+                    continue;
+                }
+                pairs.add(PairCounter.pack(candidatePairs.get(i)[0], candidatePairs.get(i)[1]), counts[0][i]);
+            }
+        }
 
-                    if (itemCount.get(item1) >= threshold && itemCount.get(item2) >= threshold) {
-                        final int k = (item1 * itemCountSize + item2) % b;
-                        compartments.compute(k, (key, val) -> val == null ? 1 : val + 1);
+        for (int k = 3; k <= maxSize; k++) {
+            final Level level = new Level();
+            if (k - 2 < counts.length) {
+                for (int i = 0; i < counts[k - 2].length; i++) {
+                    if (counts[k - 2][i] >= threshold) {
+                        level.add(verification.itemsets.get(k - 2).get(i), counts[k - 2][i]);
                     }
                 }
             }
+            levels.add(level);
+
+            if (level.itemsets.isEmpty()) {
+                break;
+            }
+        }
+
+        if (stats) {
+            for (int level = 0; level < counts.length; level++) {
+                final int size = level + 2;
+                System.err.printf(Locale.US, "verified size %d: %d candidates, %d frequent%n", size,
+                    counts[level].length, Arrays.stream(counts[level]).filter(count -> count >= threshold).count());
+            }
+        }
+
+        return verification;
+    }
+
+    private void countItems(ForkJoinPool pool) throws IOException {
+        for (final ItemPass pass : runPass(pool, ItemPass::new)) {
+            for (int i = 0, size = pass.items.size(); i < size; i++) {
+                itemCount.add(pass.items.id(i), pass.items.count(i));
+            }
+        }
+
+        final int itemCountSize = itemCount.size();
+        frequentItems = new boolean[itemCountSize];
+        int frequentCount = 0;
+        for (int i = 0; i < itemCountSize; i++) {
+            frequentItems[i] = itemCount.count(i) >= threshold;
+            if (frequentItems[i]) {
+                frequentCount++;
+            }
+        }
+
+        rankedItems = new int[frequentCount];
+        for (int i = 0, r = 0; i < itemCountSize; i++) {
+            if (frequentItems[i]) {
+                rankedItems[r++] = itemCount.id(i);
+            }
+        }
+        Arrays.sort(rankedItems);
+
+        rankOf = new int[itemCountSize];
+        for (int i = 0; i < itemCountSize; i++) {
+            rankOf[i] = frequentItems[i] ? Arrays.binarySearch(rankedItems, itemCount.id(i)) : -1;
+        }
+    }
+
+    private void countPairs(ForkJoinPool pool) throws IOException {
+        long candidateOccurrences = 0;
+        for (final PairPass pass : runPass(pool, PairPass::new)) {
+            pass.pairs.forEach(pairs::add);
+            candidateOccurrences += pass.candidateOccurrences;
+        }
+
+        if (stats) {
+            System.err.printf(Locale.US, "candidates: %d pairs counted, %d distinct%n", candidateOccurrences,
+                pairs.size());
+        }
+    }
+
+    /**
+     * Returns the frequent pairs of distinct items as sorted rank pairs in lexicographic order. Without
+     * {@link #unorderedPairs} candidate pairs are counted in basket order, so both orders of a pair are added up here.
+     */
+    private List<int[]> frequentPairs() {
+        final PairCounter unordered = new PairCounter();
+
+        pairs.forEach((key, count) -> {
+            final int first = rankOf[(int) (key >>> 32)];
+            final int second = rankOf[(int) key];
+
+            if (first != second) {
+                unordered.add(PairCounter.pack(Math.min(first, second), Math.max(first, second)), count);
+            }
+        });
+
+        final List<int[]> frequent = new ArrayList<>();
+        unordered.forEach((key, count) -> {
+            if (count >= threshold) {
+                frequent.add(new int[]{(int) (key >>> 32), (int) key});
+            }
+        });
+        frequent.sort(Arrays::compare);
+
+        return frequent;
+    }
+
+    /**
+     * Apriori step: joins the frequent itemsets of size {@code k - 1} that share a prefix, drops the candidates with
+     * an infrequent subset and counts the rest in one pass. Returns the frequent itemsets of size {@code k} in
+     * lexicographic order.
+     */
+    private List<int[]> countItemsets(ForkJoinPool pool, List<int[]> previous, int k) throws IOException {
+        final CandidateTrie previousTrie = new CandidateTrie(previous, k - 1);
+        final List<int[]> candidates = new ArrayList<>();
+
+        for (int i = 0, size = previous.size(); i < size; i++) {
+            final int[] first = previous.get(i);
+
+            for (int j = i + 1; j < size; j++) {
+                final int[] second = previous.get(j);
+                if (Arrays.mismatch(first, second) < k - 2) {
+                    break;
+                }
+
+                final int[] candidate = Arrays.copyOf(first, k);
+                candidate[k - 1] = second[k - 2];
+                if (allSubsetsFrequent(candidate, previousTrie)) {
+                    candidates.add(candidate);
+                }
+            }
+        }
+
+        final CandidateTrie trie = new CandidateTrie(candidates, k);
+        final int[] counts = new int[candidates.size()];
+        if (!candidates.isEmpty()) {
+            for (final ItemsetPass pass : runPass(pool, () -> new ItemsetPass(trie))) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += pass.counts[i];
+                }
+            }
+        }
+
+        final Level level = new Level();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] >= threshold) {
+                level.add(candidates.get(i), counts[i]);
+            } else if (keepBorder) {
+                level.border.add(candidates.get(i));
+            }
+        }
+        levels.add(level);
+
+        if (stats) {
+            System.err.printf(Locale.US, "level %d: %d candidates, %d frequent%n", k, candidates.size(),
+                level.itemsets.size());
+        }
+
+        return level.itemsets;
+    }
+
+    private static boolean allSubsetsFrequent(int[] candidate, CandidateTrie previous) {
+        // the two subsets that drop one of the last two items are the joined itemsets themselves
+        for (int skip = 0; skip < candidate.length - 2; skip++) {
+            if (!previous.contains(candidate, skip)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Splits the baskets into one range per thread and visits every range with its own pass instance, so that the
+     * counting tables are never shared between threads. The caller merges the returned passes.
+     */
+    private <T extends BasketVisitor> List<T> runPass(ForkJoinPool pool, Supplier<T> factory) throws IOException {
+        if (threads == 1) {
+            final T pass = factory.get();
+            baskets.forEach(0, 1, pass);
+            return List.of(pass);
+        }
+
+        final List<Callable<T>> tasks = new ArrayList<>(threads);
+        for (int part = 0; part < threads; part++) {
+            final int index = part;
+
+            tasks.add(() -> {
+                final T pass = factory.get();
+                baskets.forEach(index, threads, pass);
+                return pass;
+            });
+        }
+
+        return invokeAll(pool, tasks);
+    }
+
+    private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException {
+        final List<T> results = new ArrayList<>(tasks.size());
+
+        try {
+            for (final Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+
+        return results;
+    }
+
+    /**
+     * Runs one pass that fills {@code count} hash tables starting with {@code firstTable} and converts each of them
+     * to a bitmap of its frequent compartments.
+     */
+    private void countBuckets(ForkJoinPool pool, int firstTable, int count) throws IOException {
+        final int[][] compartments = new int[count][tableSize];
+        long hashedPairs = 0;
+
+        for (final BucketPass pass : runPass(pool, () -> new BucketPass(firstTable, count))) {
+            hashedPairs += pass.hashedPairs;
+            for (int table = 0; table < count; table++) {
+                for (int i = 0; i < tableSize; i++) {
+                    compartments[table][i] += pass.compartments[table][i];
+                }
+            }
+        }
+
+        for (int table = 0; table < count; table++) {
+            final BitSet bitmap = new BitSet(tableSize);
+            for (int i = 0; i < tableSize; i++) {
+                if (compartments[table][i] >= threshold) {
+                    bitmap.set(i);
+                }
+            }
+            bitmaps.add(bitmap);
+
+            if (stats) {
+                System.err.printf(Locale.US, "table %d: %d pairs hashed, %d of %d compartments frequent%n",
+                    firstTable + table + 1, hashedPairs, bitmap.cardinality(), tableSize);
+            }
+        }
+    }
+
+    /**
+     * Hashes a pair of original item ids into a compartment of the given table. The first table uses the original
+     * PCY hash, only folded into {@code [0, tableSize)} so that an overflowing product can still be used as an array
+     * index; the other tables use independent mixes of the pair. With {@link #unorderedPairs} the smaller id goes
+     * first.
+     */
+    private int bucket(int table, int item1, int item2) {
+        if (unorderedPairs && item1 > item2) {
+            return bucket(table, item2, item1);
+        }
+
+        if (table == 0) {
+            return Math.floorMod(item1 * itemCount.size() + item2, tableSize);
+        }
+
+        long h = PairCounter.pack(item1, item2) + table * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+
+        return (int) Math.floorMod(h, (long) tableSize);
+    }
+
+    /**
+     * Checks that a pair of frequent items hashes into a frequent compartment of the first {@code tables} tables.
+     */
+    private boolean inFrequentBuckets(int tables, int item1, int item2) {
+        for (int table = 0; table < tables; table++) {
+            if (!bitmaps.get(table).get(bucket(table, item1, item2))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * First pass: counts every item of a basket range in a local table.
+     */
+    private static final class ItemPass implements BasketVisitor {
+
+        final ItemTable items = new ItemTable();
+
+        @Override
+        public void visit(int[] basket, int size) {
+            for (int i = 0; i < size; i++) {
+                items.add(basket[i], 1);
+            }
+        }
+
+    }
+
+    /**
+     * Base for the passes that run after the item counts are known and work with dense item indexes.
+     */
+    private abstract class DensePass implements BasketVisitor {
+
+        private int[] indexes = new int[16];
+
+        int[] toDenseIndexes(int[] basket, int basketSize) {
+            if (indexes.length < basketSize) {
+                indexes = new int[Math.max(basketSize, indexes.length * 2)];
+            }
+
+            for (int i = 0; i < basketSize; i++) {
+                indexes[i] = itemCount.indexOf(basket[i]);
+            }
+
+            return indexes;
+        }
+
+    }
+
+    /**
+     * Hashing pass: hashes every pair of frequent items that survived the previously built tables into local copies
+     * of the given tables. Plain PCY and Multihash run one such pass, Multistage runs one per table.
+     */
+    private final class BucketPass extends DensePass {
+
+        final int firstTable;
+        final int[][] compartments;
+        final int previousTables = bitmaps.size();
+        long hashedPairs;
+
+        BucketPass(int firstTable, int count) {
+            this.firstTable = firstTable;
+            this.compartments = new int[count][tableSize];
         }
 
-        for (final List<Integer> basket : baskets) {
-            final int basketSize = basket.size();
+        @Override
+        public void visit(int[] basket, int basketSize) {
+            final int[] indexes = toDenseIndexes(basket, basketSize);
+
             for (int i = 0; i < basketSize; i++) {
+                if (!frequentItems[indexes[i]]) {
+                    continue;
+                }
+
                 for (int j = i + 1; j < basketSize; j++) {
-                    final int item1 = basket.get(i);
-                    final int item2 = basket.get(j);
+                    if (frequentItems[indexes[j]] && inFrequentBuckets(previousTables, basket[i], basket[j])) {
+                        hashedPairs++;
+                        for (int table = 0; table < compartments.length; table++) {
+                            compartments[table][bucket(firstTable + table, basket[i], basket[j])]++;
+                        }
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Last pass: counts the pairs of frequent items that hash into a frequent compartment of every table.
+     */
+    private final class PairPass extends DensePass {
+
+        final PairCounter pairs = new PairCounter();
+        final int tables = bitmaps.size();
+        long candidateOccurrences;
 
-                    if (itemCount.get(item1) >= threshold && itemCount.get(item2) >= threshold) {
-                        final int k = (item1 * itemCountSize + item2) % b;
-                        if (compartments.getOrDefault(k, 0) >= threshold) {
-                            pairs.compute(List.of(item1, item2), (key, val) -> val == null ? 1 : val + 1);
+        @Override
+        public void visit(int[] basket, int basketSize) {
+            final int[] indexes = toDenseIndexes(basket, basketSize);
+
+            for (int i = 0; i < basketSize; i++) {
+                if (!frequentItems[indexes[i]]) {
+                    continue;
+                }
+
+                for (int j = i + 1; j < basketSize; j++) {
+                    if (frequentItems[indexes[j]] && inFrequentBuckets(tables, basket[i], basket[j])) {
+                        candidateOccurrences++;
+                        if (unorderedPairs) {
+                            pairs.add(PairCounter.pack(Math.min(indexes[i], indexes[j]),
+                                Math.max(indexes[i], indexes[j])), 1);
+                        } else {
+                            pairs.add(PairCounter.pack(indexes[i], indexes[j]), 1);
                         }
                     }
                 }
             }
         }
 
-        System.out.println(itemCountSize * (itemCountSize - 1) / 2);
-        System.out.println(pairs.size());
-        pairs.values().stream().sorted(Comparator.reverseOrder()).forEach(System.out::println);
+    }
+
+    private enum Mode {
+        PCY, MULTISTAGE, MULTIHASH, SON, TOIVONEN
+    }
+
+    /**
+     * Frequent itemsets of one size with their supports, items given as ranks. When the negative border is kept,
+     * {@code border} holds the candidates of this size that turned out not to be frequent.
+     */
+    private static final class Level {
+
+        final List<int[]> itemsets = new ArrayList<>();
+        final List<int[]> border = new ArrayList<>();
+        private int[] supports = new int[16];
+
+        void add(int[] itemset, int support) {
+            if (itemsets.size() == supports.length) {
+                supports = Arrays.copyOf(supports, supports.length * 2);
+            }
+
+            supports[itemsets.size()] = support;
+            itemsets.add(itemset);
+        }
+
+        /**
+         * Prints the number of itemsets followed by one itemset per line as item ids and support, ordered by
+         * support descending and then by items.
+         */
+        void print(PrintWriter out, int[] rankedItems) {
+            final Integer[] order = new Integer[itemsets.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (o1, o2) -> supports[o1] != supports[o2] ?
+                Integer.compare(supports[o2], supports[o1]) :
+                Arrays.compare(itemsets.get(o1), itemsets.get(o2)));
+
+            out.println(order.length);
+            for (final int i : order) {
+                final StringBuilder sb = new StringBuilder();
+                for (final int rank : itemsets.get(i)) {
+                    sb.append(rankedItems[rank]).append(' ');
+                }
+                out.println(sb.append(supports[i]));
+            }
+        }
+
+    }
+
+    /**
+     * Support counting pass for the candidates of one Apriori level. Every basket is reduced to the sorted ranks of
+     * its frequent items and matched against the candidate trie.
+     */
+    private final class ItemsetPass extends DensePass {
+
+        final CandidateTrie trie;
+        final int[] counts;
+        private int[] ranks = new int[16];
+
+        ItemsetPass(CandidateTrie trie) {
+            this.trie = trie;
+            this.counts = new int[trie.size()];
+        }
+
+        @Override
+        public void visit(int[] basket, int basketSize) {
+            final int[] indexes = toDenseIndexes(basket, basketSize);
+            if (ranks.length < basketSize) {
+                ranks = new int[Math.max(basketSize, ranks.length * 2)];
+            }
+
+            int size = 0;
+            for (int i = 0; i < basketSize; i++) {
+                final int rank = rankOf[indexes[i]];
+                if (rank >= 0) {
+                    ranks[size++] = rank;
+                }
+            }
+            if (size < trie.depth) {
+                return;
+            }
+
+            Arrays.sort(ranks, 0, size);
+            int unique = 1;
+            for (int i = 1; i < size; i++) {
+                if (ranks[i] != ranks[unique - 1]) {
+                    ranks[unique++] = ranks[i];
+                }
+            }
+
+            trie.count(ranks, unique, counts);
+        }
+
+    }
+
+    /**
+     * Exact counts of the SON / Toivonen candidates, per size starting with pairs, in rank space.
+     */
+    private static final class Verification {
+
+        final ItemTable ranks;
+        final List<List<int[]>> itemsets = new ArrayList<>();
+        int[][] counts;
+
+        Verification(ItemTable ranks) {
+            this.ranks = ranks;
+        }
+
+        int[] toRanks(int[] itemset) {
+            final int[] result = new int[itemset.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = ranks.indexOf(itemset[i]);
+            }
+
+            return result;
+        }
+
+        int count(int level, int[] itemset) {
+            final int i = Collections.binarySearch(itemsets.get(level), toRanks(itemset), Arrays::compare);
+
+            return i < 0 ? 0 : counts[level][i];
+        }
+
+    }
+
+    /**
+     * SON / Toivonen verification pass: counts every item and every candidate itemset of a basket range.
+     */
+    private static final class VerificationPass implements BasketVisitor {
+
+        final ItemTable items = new ItemTable();
+        final ItemTable ranks;
+        final CandidateTrie[] tries;
+        final int[][] counts;
+        private int[] basketRanks = new int[16];
+
+        VerificationPass(ItemTable ranks, CandidateTrie[] tries) {
+            this.ranks = ranks;
+            this.tries = tries;
+            this.counts = new int[tries.length][];
+            for (int level = 0; level < tries.length; level++) {
+                counts[level] = new int[tries[level].size()];
+            }
+        }
+
+        @Override
+        public void visit(int[] basket, int basketSize) {
+            if (basketRanks.length < basketSize) {
+                basketRanks = new int[Math.max(basketSize, basketRanks.length * 2)];
+            }
+
+            int size = 0;
+            for (int i = 0; i < basketSize; i++) {
+                items.add(basket[i], 1);
+
+                final int rank = ranks.indexOf(basket[i]);
+                if (rank >= 0) {
+                    basketRanks[size++] = rank;
+                }
+            }
+            if (size < 2) {
+                return;
+            }
+
+            Arrays.sort(basketRanks, 0, size);
+            int unique = 1;
+            for (int i = 1; i < size; i++) {
+                if (basketRanks[i] != basketRanks[unique - 1]) {
+                    basketRanks[unique++] = basketRanks[i];
+                }
+            }
+
+            for (int level = 0; level < tries.length; level++) {
+                tries[level].count(basketRanks, unique, counts[level]);
+            }
+        }
+
+    }
+
+    private static final class Options {
+
+        Path path;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Mode mode = Mode.PCY;
+        int hashes = 2;
+        boolean stats;
+        int maxSize = 2;
+        boolean keepBorder;
+        int chunks;
+        long chunkBytes = 64L << 20;
+        double sampleRate = 0.1;
+        double lowering = 0.6;
+        long seed;
+        int retries = 2;
+        boolean local;
+
+        /**
+         * Options of the plain PCY miner that SON runs on every chunk and Toivonen on the sample.
+         */
+        static Options local(int threads, int maxSize, boolean keepBorder) {
+            final Options options = new Options();
+            options.threads = threads;
+            options.maxSize = maxSize;
+            options.keepBorder = keepBorder;
+            options.local = true;
+
+            return options;
+        }
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        options.threads = Integer.parseInt(value(args, ++i));
+                        if (options.threads < 1) {
+                            throw new IllegalArgumentException("Thread count must be positive: " + options.threads);
+                        }
+                        break;
+                    case "--mode":
+                        options.mode = Mode.valueOf(value(args, ++i).toUpperCase(Locale.ROOT));
+                        break;
+                    case "--hashes":
+                        options.hashes = Integer.parseInt(value(args, ++i));
+                        if (options.hashes < 1) {
+                            throw new IllegalArgumentException("Hash table count must be positive: " + options.hashes);
+                        }
+                        break;
+                    case "--max-size":
+                        options.maxSize = Integer.parseInt(value(args, ++i));
+                        if (options.maxSize < 2) {
+                            throw new IllegalArgumentException("Maximum itemset size must be at least 2: " +
+                                options.maxSize);
+                        }
+                        break;
+                    case "--chunks":
+                        options.chunks = Integer.parseInt(value(args, ++i));
+                        if (options.chunks < 1) {
+                            throw new IllegalArgumentException("Chunk count must be positive: " + options.chunks);
+                        }
+                        break;
+                    case "--chunk-bytes":
+                        options.chunkBytes = Long.parseLong(value(args, ++i));
+                        if (options.chunkBytes < 1) {
+                            throw new IllegalArgumentException("Chunk size must be positive: " + options.chunkBytes);
+                        }
+                        break;
+                    case "--sample":
+                        options.sampleRate = Double.parseDouble(value(args, ++i));
+                        if (options.sampleRate <= 0 || options.sampleRate > 1) {
+                            throw new IllegalArgumentException("Sample rate must be in (0, 1]: " + options.sampleRate);
+                        }
+                        break;
+                    case "--lowering":
+                        options.lowering = Double.parseDouble(value(args, ++i));
+                        if (options.lowering <= 0 || options.lowering > 1) {
+                            throw new IllegalArgumentException("Threshold lowering must be in (0, 1]: " +
+                                options.lowering);
+                        }
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--retries":
+                        options.retries = Integer.parseInt(value(args, ++i));
+                        if (options.retries < 0) {
+                            throw new IllegalArgumentException("Retry count must not be negative: " +
+                                options.retries);
+                        }
+                        break;
+                    case "--stats":
+                        options.stats = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || options.path != null) {
+                            throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                        }
+                        options.path = Path.of(args[i]);
+                }
+            }
+
+            return options;
+        }
+
+        private static String value(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+            }
+
+            return args[i];
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface BasketVisitor {
+
+        void visit(int[] basket, int size);
+
+    }
+
+    /**
+     * Header of the input ({@code n}, {@code s} and {@code b}) together with a way to stream over all baskets.
+     * Every pass of the algorithm calls {@link #forEach(int, int, BasketVisitor)} once per part, possibly from
+     * several threads at once; the visited array is only valid for the duration of the call and its first
+     * {@code size} elements are the items of the basket.
+     */
+    private abstract static class BasketSource {
+
+        final int n;
+        final double s;
+        final int b;
+
+        BasketSource(int n, double s, int b) {
+            this.n = n;
+            this.s = s;
+            this.b = b;
+        }
+
+        /**
+         * Visits the baskets of the {@code part}-th of {@code parts} disjoint ranges that together cover the input.
+         */
+        abstract void forEach(int part, int parts, BasketVisitor visitor) throws IOException;
+
+        /**
+         * Size of the baskets in bytes: the text of a file, or the arrays of baskets held in memory.
+         */
+        abstract long bytes();
+
+    }
+
+    private static final class InMemoryBaskets extends BasketSource {
+
+        private final List<int[]> baskets;
+
+        private InMemoryBaskets(int n, double s, int b, List<int[]> baskets) {
+            super(n, s, b);
+            this.baskets = baskets;
+        }
+
+        static InMemoryBaskets read(BufferedReader reader) throws IOException {
+            try (reader) {
+                final int n = Integer.parseInt(reader.readLine().trim());
+                final double s = Double.parseDouble(reader.readLine().trim());
+                final int b = Integer.parseInt(reader.readLine().trim());
+
+                final List<int[]> baskets = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    baskets.add(parseBasket(reader.readLine()));
+                }
+
+                return new InMemoryBaskets(n, s, b, baskets);
+            }
+        }
+
+        @Override
+        void forEach(int part, int parts, BasketVisitor visitor) {
+            final int size = baskets.size();
+            final int from = (int) ((long) size * part / parts);
+            final int to = (int) ((long) size * (part + 1) / parts);
+
+            for (final int[] basket : baskets.subList(from, to)) {
+                visitor.visit(basket, basket.length);
+            }
+        }
+
+        @Override
+        long bytes() {
+            long bytes = 0;
+            for (final int[] basket : baskets) {
+                // array header and items
+                bytes += 16 + 4L * basket.length;
+            }
+
+            return bytes;
+        }
+
+        private static int[] parseBasket(String line) {
+            int[] basket = new int[16];
+            int size = 0;
+
+            for (int i = 0, length = line.length(); i < length; ) {
+                char c = line.charAt(i);
+                if (c == ' ' || c == '\t' || c == '\r') {
+                    i++;
+                    continue;
+                }
+
+                final boolean negative = c == '-';
+                if (negative) {
+                    i++;
+                }
+
+                final int start = i;
+                int value = 0;
+                for (; i < length && (c = line.charAt(i)) >= '0' && c <= '9'; i++) {
+                    value = value * 10 + (c - '0');
+                }
+                if (i == start) {
+                    throw new NumberFormatException("For input string: \"" + line.trim() + "\"");
+                }
+
+                if (size == basket.length) {
+                    basket = Arrays.copyOf(basket, size * 2);
+                }
+                basket[size++] = negative ? -value : value;
+            }
+
+            return Arrays.copyOf(basket, size);
+        }
+
+    }
+
+    /**
+     * Baskets read straight from a memory-mapped input file on every pass, so that heap usage depends only on the
+     * number of distinct items and {@code b}. Every line after the header is a basket. The file is mapped in windows
+     * of at most {@link #WINDOW_SIZE} bytes; a basket that crosses the end of a window is parsed again from the start
+     * of the next one.
+     */
+    private static final class MappedBasketFile extends BasketSource {
+
+        private static final long WINDOW_SIZE = 1L << 28;
+
+        private final Path path;
+        private final long dataStart;
+        private final long textBytes;
+
+        private MappedBasketFile(int n, double s, int b, Path path, long dataStart, long textBytes) {
+            super(n, s, b);
+            this.path = path;
+            this.dataStart = dataStart;
+            this.textBytes = textBytes;
+        }
+
+        static MappedBasketFile open(Path path) throws IOException {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), 4096));
+
+                final int n = Integer.parseInt(readLine(header));
+                final double s = Double.parseDouble(readLine(header));
+                final int b = Integer.parseInt(readLine(header));
+
+                return new MappedBasketFile(n, s, b, path, header.position(), channel.size() - header.position());
+            }
+        }
+
+        @Override
+        long bytes() {
+            return textBytes;
+        }
+
+        @Override
+        void forEach(int part, int parts, BasketVisitor visitor) throws IOException {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final long fileSize = channel.size();
+                final long dataSize = fileSize - dataStart;
+                final long end = lineStart(channel, dataStart + dataSize * (part + 1) / parts);
+                final LineParser parser = new LineParser();
+
+                long position = lineStart(channel, dataStart + dataSize * part / parts);
+                while (position < end) {
+                    final long windowSize = Math.min(WINDOW_SIZE, fileSize - position);
+                    final boolean lastWindow = position + windowSize == fileSize;
+                    final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+
+                    int lineStart = 0;
+                    while (position + lineStart < end) {
+                        final int lineEnd = parser.parse(window, lineStart, lastWindow);
+                        if (lineEnd < 0) {
+                            break;
+                        }
+
+                        visitor.visit(parser.basket, parser.size);
+                        lineStart = lineEnd;
+                    }
+
+                    if (lineStart == 0) {
+                        throw new IOException("Basket at offset " + position + " does not fit into a mapping window");
+                    }
+                    position += lineStart;
+                }
+            }
+        }
+
+        /**
+         * Returns the offset of the first basket line that starts at or after {@code offset}.
+         */
+        private long lineStart(FileChannel channel, long offset) throws IOException {
+            if (offset <= dataStart) {
+                return dataStart;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            for (long position = offset - 1; ; ) {
+                buffer.clear();
+                final int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    return channel.size();
+                }
+
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return position + i + 1;
+                    }
+                }
+                position += read;
+            }
+        }
+
+        private static String readLine(MappedByteBuffer buffer) {
+            final StringBuilder sb = new StringBuilder();
+
+            while (buffer.hasRemaining()) {
+                final char c = (char) buffer.get();
+                if (c == '\n') {
+                    break;
+                }
+                sb.append(c);
+            }
+
+            return sb.toString().trim();
+        }
+
+    }
+
+    /**
+     * Parses one basket line from a byte buffer into a reusable array.
+     */
+    private static final class LineParser {
+
+        int[] basket = new int[16];
+        int size;
+
+        /**
+         * Returns the offset just past the parsed line, or {@code -1} if the line is not terminated within the
+         * buffer and {@code endOfInput} is false.
+         */
+        int parse(MappedByteBuffer buffer, int from, boolean endOfInput) {
+            final int limit = buffer.limit();
+            size = 0;
+
+            int i = from;
+            while (i < limit) {
+                byte c = buffer.get(i);
+                if (c == '\n') {
+                    return i + 1;
+                }
+                if (c == ' ' || c == '\t' || c == '\r') {
+                    i++;
+                    continue;
+                }
+
+                final boolean negative = c == '-';
+                if (negative) {
+                    i++;
+                }
+
+                final int start = i;
+                int value = 0;
+                for (; i < limit && (c = buffer.get(i)) >= '0' && c <= '9'; i++) {
+                    value = value * 10 + (c - '0');
+                }
+                if (i == start) {
+                    throw new NumberFormatException("Unexpected character in basket at offset " + i);
+                }
+
+                if (size == basket.length) {
+                    basket = Arrays.copyOf(basket, size * 2);
+                }
+                basket[size++] = negative ? -value : value;
+            }
+
+            return endOfInput ? limit : -1;
+        }
+
+    }
+
+    /**
+     * Prefix trie over itemsets of equal size, stored level by level in flat arrays. The nodes of one depth are laid
+     * out in lexicographic order, so the children of a node are a contiguous, sorted range of the next depth and the
+     * leaves are numbered in the order of the itemsets the trie was built from.
+     */
+    private static final class CandidateTrie {
+
+        final int depth;
+
+        /**
+         * Item of every node, per depth.
+         */
+        private final int[][] items;
+
+        /**
+         * Children of node {@code i} at depth {@code d} are nodes {@code [children[d][i], children[d][i + 1])} at
+         * depth {@code d + 1}.
+         */
+        private final int[][] children;
+
+        CandidateTrie(List<int[]> itemsets, int depth) {
+            this.depth = depth;
+            this.items = new int[depth][];
+            this.children = new int[depth - 1][];
+
+            final int size = itemsets.size();
+            final int[] mismatch = new int[size];
+            for (int i = 1; i < size; i++) {
+                mismatch[i] = Arrays.mismatch(itemsets.get(i - 1), itemsets.get(i));
+            }
+
+            final int[] nodes = new int[depth];
+            for (int d = 0; d < depth; d++) {
+                for (int i = 0; i < size; i++) {
+                    if (mismatch[i] <= d) {
+                        nodes[d]++;
+                    }
+                }
+                items[d] = new int[nodes[d]];
+                if (d < depth - 1) {
+                    children[d] = new int[nodes[d] + 1];
+                }
+            }
+
+            final int[] next = new int[depth];
+            for (int i = 0; i < size; i++) {
+                final int[] itemset = itemsets.get(i);
+
+                for (int d = mismatch[i]; d < depth; d++) {
+                    items[d][next[d]] = itemset[d];
+                    if (d < depth - 1) {
+                        children[d][next[d]] = next[d + 1];
+                    }
+                    next[d]++;
+                }
+            }
+            for (int d = 0; d < depth - 1; d++) {
+                children[d][nodes[d]] = nodes[d + 1];
+            }
+        }
+
+        int size() {
+            return items[depth - 1].length;
+        }
+
+        /**
+         * Adds one to the count of every itemset contained in the given sorted, duplicate free basket.
+         */
+        void count(int[] basket, int size, int[] counts) {
+            count(basket, size, 0, 0, 0, items[0].length, counts);
+        }
+
+        private void count(int[] basket, int size, int start, int d, int from, int to, int[] counts) {
+            final int[] level = items[d];
+
+            for (int i = start, node = from; i <= size - depth + d && node < to; ) {
+                final int item = basket[i];
+                final int nodeItem = level[node];
+
+                if (item < nodeItem) {
+                    i++;
+                } else if (item > nodeItem) {
+                    node++;
+                } else {
+                    if (d == depth - 1) {
+                        counts[node]++;
+                    } else {
+                        count(basket, size, i + 1, d + 1, children[d][node], children[d][node + 1], counts);
+                    }
+                    i++;
+                    node++;
+                }
+            }
+        }
+
+        /**
+         * Checks whether the itemset obtained by dropping the element at {@code skip} is in the trie.
+         */
+        boolean contains(int[] itemset, int skip) {
+            int from = 0;
+            int to = items[0].length;
+
+            for (int d = 0, i = 0; d < depth; d++, i++) {
+                if (i == skip) {
+                    i++;
+                }
+
+                final int node = Arrays.binarySearch(items[d], from, to, itemset[i]);
+                if (node < 0) {
+                    return false;
+                }
+                if (d < depth - 1) {
+                    from = children[d][node];
+                    to = children[d][node + 1];
+                }
+            }
+
+            return true;
+        }
+
+    }
+
+    /**
+     * Open addressing map from original item ids to dense indexes in {@code [0, size)}, with the number of
+     * occurrences of every item kept in a plain array indexed by the dense index.
+     */
+    private static final class ItemTable {
+
+        private int[] slots = new int[1024];
+        private int[] ids = new int[512];
+        private int[] counts = new int[512];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        int id(int index) {
+            return ids[index];
+        }
+
+        int count(int index) {
+            return counts[index];
+        }
+
+        int indexOf(int item) {
+            final int mask = slots.length - 1;
+
+            for (int slot = mix(item) & mask; ; slot = (slot + 1) & mask) {
+                final int index = slots[slot] - 1;
+                if (index < 0) {
+                    return -1;
+                }
+                if (ids[index] == item) {
+                    return index;
+                }
+            }
+        }
+
+        int add(int item, int count) {
+            final int mask = slots.length - 1;
+
+            for (int slot = mix(item) & mask; ; slot = (slot + 1) & mask) {
+                final int index = slots[slot] - 1;
+                if (index < 0) {
+                    return insert(slot, item, count);
+                }
+                if (ids[index] == item) {
+                    counts[index] += count;
+                    return index;
+                }
+            }
+        }
+
+        private int insert(int slot, int item, int count) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+
+            final int index = size++;
+            ids[index] = item;
+            counts[index] = count;
+            slots[slot] = index + 1;
+
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+
+            return index;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            final int mask = slots.length - 1;
+
+            for (int index = 0; index < size; index++) {
+                int slot = mix(ids[index]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = index + 1;
+            }
+        }
+
+        private static int mix(int key) {
+            final int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface PairConsumer {
+
+        void accept(long key, int count);
+
+    }
+
+    /**
+     * Open addressing counter keyed by an ordered pair of dense item indexes packed into a single {@code long}.
+     */
+    private static final class PairCounter {
+
+        private static final long EMPTY = -1L;
+
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        PairCounter() {
+            keys = new long[1024];
+            values = new int[1024];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        static long pack(int first, int second) {
+            return ((long) first << 32) | (second & 0xFFFFFFFFL);
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(long key, int delta) {
+            final int mask = keys.length - 1;
+
+            for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+                final long current = keys[slot];
+                if (current == key) {
+                    values[slot] += delta;
+                    return;
+                }
+                if (current == EMPTY) {
+                    keys[slot] = key;
+                    values[slot] = delta;
+                    if (++size * 2 > keys.length) {
+                        rehash();
+                    }
+                    return;
+                }
+            }
+        }
+
+        void forEach(PairConsumer consumer) {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != EMPTY) {
+                    consumer.accept(keys[slot], values[slot]);
+                }
+            }
+        }
+
+        int[] values() {
+            final int[] result = new int[size];
+
+            for (int slot = 0, i = 0; slot < keys.length; slot++) {
+                if (keys[slot] != EMPTY) {
+                    result[i++] = values[slot];
+                }
+            }
+
+            return result;
+        }
+
+        private void rehash() {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(keys, EMPTY);
+            final int mask = keys.length - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+            return (int) (h ^ (h >>> 16));
+        }
+
     }
 
 }
@@ -0,0 +1,18 @@
+#!/bin/bash
+# test04 sadrži košare iz test02 s izmiješanim redoslijedom predmeta,
+# čestih skupova predmeta mora biti jednako mnogo kao za test02
+for mode in pcy multistage multihash son toivonen
+do
+	echo "Test 04 --mode $mode"
+	# pokreni program na obje verzije ulaza i usporedi izlaze
+	res=`diff <(java PCY --max-size 3 --mode $mode < examples/test02/R.in 2>/dev/null) <(java PCY --max-size 3 --mode $mode < examples/test04/R.in 2>/dev/null)`
+	if [ "$res" != "" ]
+	then
+		# izlazi ne odgovaraju
+		echo "FAIL"
+		echo $res
+	else
+		# OK!
+		echo "OK"
+	fi
+done
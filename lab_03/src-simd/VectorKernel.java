@@ -0,0 +1,42 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorized dot product used by {@code CF --simd}. It lives in its own source directory because the incubator
+ * module has to be added explicitly, while {@code javac src/*.java} and {@code java ./src/CF.java} must keep working
+ * without it. Compile and run with
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d build src-simd/VectorKernel.java
+ * java --add-modules jdk.incubator.vector -cp build ./src/CF.java --simd
+ * </pre>
+ * CF looks the kernel up by name and falls back to its scalar loop when the class or the module is missing.
+ */
+public final class VectorKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorKernel() {
+    }
+
+    /**
+     * Dot product of {@code a} and {@code b} over {@code [from, to)}. Lanes are summed separately, so the result
+     * may differ from the sequential sum in the last bits.
+     */
+    public static double dot(double[] a, double[] b, int from, int to) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+
+        int i = from;
+        for (final int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            sum = DoubleVector.fromArray(SPECIES, a, i).fma(DoubleVector.fromArray(SPECIES, b, i), sum);
+        }
+
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < to; i++) {
+            result += a[i] * b[i];
+        }
+
+        return result;
+    }
+
+}
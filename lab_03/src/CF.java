@@ -1,77 +1,184 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
 
 public class CF {
 
     private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("#.000");
 
-    private final Integer numberOfItems;
-    private final Integer numberOfUsers;
-    private final List<List<Integer>> itemsTable;
-    private final List<List<Integer>> usersTable;
-    private final List<List<Integer>> queryList;
-    private final List<List<Double>> normalizedItemRatings;
-    private final List<List<Double>> normalizedUserRatings;
-    private final Map<List<Integer>, Double> similarityCache = new HashMap<>();
+    private final int numberOfItems;
+    private final int numberOfUsers;
+    private final RatingMatrix itemsTable;
+    private final RatingMatrix usersTable;
+    private final List<Command> queryList;
+    private final SimilarityCache similarityCache;
+    private final boolean cacheStats;
+    private final boolean batch;
+    private final int threads;
+
+    /**
+     * Batch mode computes the whole similarity row of a target row at once as a blocked matrix-vector product.
+     */
+    private final boolean denseRows;
+
+    /**
+     * Approximate mode: neighbors are looked up among the LSH bucket collisions of the target row.
+     */
+    private final boolean approx;
+    private final int bands;
+    private final int bandRows;
+    private final long seed;
+    private final RecallStats recallStats;
+
+    /**
+     * LSH index of the item table and of the user table, built on first use and brought up to date after updates.
+     */
+    private final LshIndex[] lshIndexes = new LshIndex[2];
+
+    /**
+     * Model file written by {@code --build}, or {@code null}.
+     */
+    private final Path buildPath;
+    private final int neighbors;
+
+    /**
+     * Memory mapped model the queries are answered from with {@code --model}; the tables are not loaded then.
+     */
+    private final NeighborModel model;
+
+    private CF(Options options) throws IOException {
+        cacheStats = options.cacheStats;
+        batch = options.batch;
+        threads = options.threads;
+        denseRows = options.denseRows;
+        approx = options.approx;
+        bands = options.bands;
+        bandRows = options.bandRows;
+        seed = options.seed;
+        recallStats = options.recall ? new RecallStats() : null;
+        buildPath = options.build;
+        neighbors = options.neighbors;
 
-    public CF() throws IOException {
         try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
-            // Parse the user-item table
-            final String[] parts = reader.readLine().trim().split(" ");
-            numberOfItems = Integer.parseInt(parts[0]);
-            numberOfUsers = Integer.parseInt(parts[1]);
+            if (options.model != null) {
+                // the model replaces the table, the input holds only the queries
+                model = NeighborModel.open(options.model);
+                numberOfItems = model.items();
+                numberOfUsers = model.users();
+                itemsTable = null;
+                usersTable = null;
+            } else {
+                model = null;
 
-            itemsTable = new ArrayList<>(numberOfItems);
-            for (int i = 0; i < numberOfItems; i++) {
-                final List<Integer> itemRatings = Arrays.stream(reader.readLine().trim().split(" "))
-                    .map(rating -> "X".equals(rating) ? 0 : Integer.parseInt(rating))
-                    .collect(Collectors.toList());
+                // Parse the user-item table
+                final String[] parts = reader.readLine().trim().split(" ");
+                numberOfItems = Integer.parseInt(parts[0]);
+                numberOfUsers = Integer.parseInt(parts[1]);
 
-                itemsTable.add(itemRatings);
-            }
+                final int[][] itemRatings = new int[numberOfItems][];
+                for (int i = 0; i < numberOfItems; i++) {
+                    itemRatings[i] = Arrays.stream(reader.readLine().trim().split(" "))
+                        .mapToInt(rating -> "X".equals(rating) ? 0 : Integer.parseInt(rating))
+                        .toArray();
+                }
+
+                final int[][] userRatings = new int[numberOfUsers][numberOfItems];
+                for (int i = 0; i < numberOfItems; i++) {
+                    for (int j = 0; j < numberOfUsers; j++) {
+                        userRatings[j][i] = itemRatings[i][j];
+                    }
+                }
 
-            usersTable = new ArrayList<>(numberOfUsers);
-            for (int i = 0; i < numberOfUsers; i++) {
-                final int index = i;
-                final List<Integer> userRatings = itemsTable.stream()
-                    .map(x -> x.get(index))
-                    .collect(Collectors.toList());
+                // Mean center the tables
+                itemsTable = new RatingMatrix(itemRatings);
+                usersTable = new RatingMatrix(userRatings);
 
-                usersTable.add(userRatings);
+                if (options.simd) {
+                    if (VectorDot.available()) {
+                        itemsTable.useVectorKernel();
+                        usersTable.useVectorKernel();
+                    } else {
+                        System.err.println("vector kernel not available, using the scalar loop");
+                    }
+                }
             }
 
-            // Parse the queries
-            final int numberOfQueries = Integer.parseInt(reader.readLine().trim());
+            // Parse the queries, which are optional when building a model
+            final String header = reader.readLine();
+            final int numberOfQueries = header == null && buildPath != null ? 0 : Integer.parseInt(header.trim());
             queryList = new ArrayList<>(numberOfQueries);
 
             for (int i = 0; i < numberOfQueries; i++) {
-                final List<Integer> query = Arrays.stream(reader.readLine().trim().split(" "))
-                    .map(Integer::parseInt)
-                    .collect(Collectors.toList());
+                final String[] queryParts = reader.readLine().trim().split(" ");
 
-                queryList.add(query);
+                switch (queryParts[0]) {
+                    case "set":
+                        queryList.add(new Update(Integer.parseInt(queryParts[1]) - 1,
+                            Integer.parseInt(queryParts[2]) - 1, Integer.parseInt(queryParts[3])));
+                        break;
+                    case "remove":
+                        queryList.add(new Update(Integer.parseInt(queryParts[1]) - 1,
+                            Integer.parseInt(queryParts[2]) - 1, 0));
+                        break;
+                    default:
+                        queryList.add(new Query(Integer.parseInt(queryParts[0]) - 1,
+                            Integer.parseInt(queryParts[1]) - 1, Integer.parseInt(queryParts[2]),
+                            Integer.parseInt(queryParts[3])));
+                }
             }
-
-            // Mean center the tables
-            normalizedItemRatings = normalizeRatings(itemsTable);
-            normalizedUserRatings = normalizeRatings(usersTable);
         }
+
+        // a larger cache than the number of row pairs would never fill up
+        final long pairs = (long) numberOfItems * (numberOfItems + 1) / 2 +
+            (long) numberOfUsers * (numberOfUsers + 1) / 2;
+        similarityCache = new SimilarityCache((int) Math.min(options.cacheCapacity, pairs));
     }
 
     public static void main(String[] args) throws IOException {
-        final CF cf = new CF();
+        final CF cf = new CF(Options.parse(args));
 
-        cf.processQueries();
+        if (cf.buildPath != null) {
+            cf.buildModel();
+            return;
+        }
+
+        if (cf.model != null) {
+            cf.processQueriesWithModel();
+        } else if (cf.batch) {
+            cf.processQueriesInBatch();
+        } else {
+            cf.processQueries();
+        }
+
+        if (cf.recallStats != null) {
+            System.err.println(cf.recallStats);
+        }
     }
 
     private static String formatResult(Double result) {
@@ -81,88 +188,1524 @@ public class CF {
         return DECIMAL_FORMAT.format(res);
     }
 
-    private static List<List<Double>> normalizeRatings(List<List<Integer>> ratings) {
-        final List<List<Double>> normalizedRatings = new ArrayList<>(ratings.size());
+    public void processQueries() {
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+
+        try {
+            for (final Command command : queryList) {
+                if (command instanceof Update) {
+                    applyUpdate((Update) command);
+                    continue;
+                }
+
+                final Query query = (Query) command;
+                final RatingMatrix ratings = query.t == 0 ? itemsTable : usersTable;
+                final int row = query.row();
+                final int[] collisions = approx ? lshIndex(query.t).collisions(row) : null;
+
+                final double recommendationResult = getRecommendationRating(query, ratings, collisions,
+                    other -> cachedSimilarity(query.t, row, other, ratings));
+
+                out.println(formatResult(recommendationResult));
+            }
+        } finally {
+            out.flush();
+        }
+
+        if (cacheStats) {
+            System.err.println(similarityCache);
+        }
+    }
+
+    /**
+     * Writes the tables and the neighbor lists of every row to the model file instead of answering queries.
+     */
+    private void buildModel() throws IOException {
+        final long start = System.nanoTime();
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        // longer lists than the largest table would only hold padding
+        final int listLength = Math.max(Math.min(neighbors, Math.max(numberOfItems, numberOfUsers) - 1), 0);
+
+        try {
+            NeighborModel.write(buildPath, itemsTable, usersTable, listLength, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        System.err.println(String.format(Locale.US, "model: %d items, %d users, %d neighbors per row, %d bytes " +
+                "in %d ms", numberOfItems, numberOfUsers, listLength, Files.size(buildPath),
+            (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * Answers the queries from the memory mapped model: the stored neighbor lists are used as long as they hold
+     * {@code k} raters of the queried column, similarities are only computed when a list is too short.
+     */
+    private void processQueriesWithModel() {
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+
+        try {
+            for (final Command command : queryList) {
+                if (command instanceof Update) {
+                    throw new IllegalArgumentException("Rating updates cannot be applied to a model file");
+                }
+
+                final Query query = (Query) command;
+                out.println(formatResult(model.table(query.t).predict(query.row(), query.column(), query.k)));
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Changes one rating in both tables. Only the item row and the user row of the rating are re-centered; cached
+     * similarities involving either row become stale through the row versions.
+     */
+    private void applyUpdate(Update update) {
+        itemsTable.set(update.item, update.user, update.rating);
+        usersTable.set(update.user, update.item, update.rating);
+    }
+
+    /**
+     * Answers the queries in batches: the queries between two updates are grouped by table type and target row, the
+     * similarities of a target row are computed at most once per group and the groups are evaluated in parallel.
+     * Results are written in the original query order.
+     */
+    public void processQueriesInBatch() throws IOException {
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try {
+            final List<Query> queries = new ArrayList<>();
+            for (final Command command : queryList) {
+                if (command instanceof Query) {
+                    queries.add((Query) command);
+                    continue;
+                }
+
+                processBatch(pool, queries, out);
+                queries.clear();
+                applyUpdate((Update) command);
+            }
+            processBatch(pool, queries, out);
+        } finally {
+            pool.shutdown();
+            out.flush();
+        }
+    }
+
+    private void processBatch(ForkJoinPool pool, List<Query> queries, PrintWriter out) throws IOException {
+        final int numberOfQueries = queries.size();
+
+        // sort query indexes by table type and target row, so that every group is a contiguous range
+        final long[] order = new long[numberOfQueries];
+        for (int q = 0; q < numberOfQueries; q++) {
+            final Query query = queries.get(q);
+            order[q] = ((long) query.t << 62) | ((long) query.row() << 31) | q;
+        }
+        Arrays.sort(order);
+
+        final List<int[]> groups = new ArrayList<>();
+        for (int start = 0, end; start < numberOfQueries; start = end) {
+            end = start + 1;
+            while (end < numberOfQueries && order[end] >>> 31 == order[start] >>> 31) {
+                end++;
+            }
+            groups.add(new int[]{start, end});
+        }
+
+        final double[] results = new double[numberOfQueries];
+        try {
+            pool.submit(() -> groups.parallelStream().forEach(group -> {
+                final Query first = queries.get(queryIndex(order[group[0]]));
+                final RatingMatrix ratings = first.t == 0 ? itemsTable : usersTable;
+                final int row = first.row();
+                final int[] collisions = approx ? lshIndex(first.t).collisions(row) : null;
+
+                final double[] similarities = new double[ratings.size()];
+                final SimilarityFunction similarity;
+                if (denseRows) {
+                    ratings.similarityRow(row, similarities);
+                    similarity = other -> similarities[other];
+                } else {
+                    Arrays.fill(similarities, Double.NaN);
+                    similarity = other -> {
+                        if (Double.isNaN(similarities[other])) {
+                            similarities[other] = ratings.cosineSimilarity(row, other);
+                        }
+                        return similarities[other];
+                    };
+                }
+
+                for (int n = group[0]; n < group[1]; n++) {
+                    final int q = queryIndex(order[n]);
+                    results[q] = getRecommendationRating(queries.get(q), ratings, collisions, similarity);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+
+        for (final double result : results) {
+            out.println(formatResult(result));
+        }
+    }
+
+    private static int queryIndex(long orderKey) {
+        return (int) (orderKey & Integer.MAX_VALUE);
+    }
+
+    private double cachedSimilarity(int t, int row, int other, RatingMatrix ratings) {
+        final long key = SimilarityCache.key(t, row, other);
+        final long stamp = ratings.stamp(row, other);
+
+        double coefficient = similarityCache.get(key, stamp);
+        if (Double.isNaN(coefficient)) {
+            coefficient = ratings.cosineSimilarity(row, other);
+            similarityCache.put(key, stamp, coefficient);
+        }
+
+        return coefficient;
+    }
+
+    private synchronized LshIndex lshIndex(int t) {
+        final RatingMatrix ratings = t == 0 ? itemsTable : usersTable;
+
+        if (lshIndexes[t] == null) {
+            lshIndexes[t] = new LshIndex(ratings, bands, bandRows, seed + t);
+        } else if (lshIndexes[t].modifications != ratings.modifications()) {
+            lshIndexes[t].update(ratings);
+        }
+
+        return lshIndexes[t];
+    }
+
+    /**
+     * Answers a query from the rows that rated its column. With {@code collisions} (approximate mode) only the
+     * colliding rows are scored. The exact scan is used instead when scanning all raters is cheaper, when fewer
+     * than {@code k} colliding rows rated the column, or when none of them is positively similar.
+     */
+    private double getRecommendationRating(Query query, RatingMatrix ratings, int[] collisions,
+        SimilarityFunction similarity) {
+        final int row = query.row();
+        final int column = query.column();
+        final int[] raters = ratings.raters(column);
+
+        if (collisions == null) {
+            return getRecommendationRating(row, column, query.k, ratings, raters, similarity);
+        }
+
+        boolean exact = raters.length <= collisions.length;
+        if (!exact) {
+            int rated = 0;
+            for (final int other : collisions) {
+                if (other != row && ratings.rating(other, column) > 0) {
+                    rated++;
+                }
+            }
+            exact = rated < query.k;
+        }
+
+        double result = getRecommendationRating(row, column, query.k, ratings, exact ? raters : collisions,
+            similarity);
+        if (!exact && Double.isNaN(result)) {
+            exact = true;
+            result = getRecommendationRating(row, column, query.k, ratings, raters, similarity);
+        }
+
+        if (recallStats != null) {
+            final int[] candidates = exact ? raters : collisions;
+            final TopK found = nearestRaters(row, column, query.k, ratings, candidates, similarity);
+            final TopK expected = nearestRaters(row, column, query.k, ratings, raters, similarity);
+            recallStats.record(found, expected, candidates.length, exact);
+        }
+
+        return result;
+    }
+
+    /**
+     * Predicts the rating of row {@code i} in column {@code j} from the {@code k} rows most similar to {@code i}
+     * among the candidate rows that rated {@code j}, ordered by similarity and then by row index.
+     */
+    private static double getRecommendationRating(int i, int j, int k, RatingMatrix ratings, int[] candidates,
+        SimilarityFunction similarity) {
+        final TopK mostSimilar = nearestRaters(i, j, k, ratings, candidates, similarity);
+
+        return weightedAverage(mostSimilar, row -> ratings.rating(row, j));
+    }
+
+    /**
+     * Average of the neighbors' ratings weighted by their similarity, counting only positively similar neighbors.
+     */
+    private static double weightedAverage(TopK mostSimilar, IntUnaryOperator rating) {
+        final int size = mostSimilar.size();
+        final double[] weightedRatings = new double[size];
+        final double[] similarities = new double[size];
+        int count = 0;
+        for (int n = 0; n < size; n++) {
+            final double coefficient = mostSimilar.similarities[n];
+            if (coefficient > 0) {
+                weightedRatings[count] = coefficient * rating.applyAsInt(mostSimilar.rows[n]);
+                similarities[count] = coefficient;
+                count++;
+            }
+        }
+
+        // DoubleStream.sum() is compensated, keep it so the predictions do not change
+        final double nominator = Arrays.stream(weightedRatings, 0, count).sum();
+        final double denominator = Arrays.stream(similarities, 0, count).sum();
+
+        return nominator / denominator;
+    }
+
+    /**
+     * Picks the {@code k} candidates most similar to row {@code i} among those that rated column {@code j} with a
+     * bounded heap, best first. Only the candidates are scored; for the exact answer they are the raters of
+     * {@code j}.
+     */
+    private static TopK nearestRaters(int i, int j, int k, RatingMatrix ratings, int[] candidates,
+        SimilarityFunction similarity) {
+        final TopK mostSimilar = new TopK(k);
+
+        for (final int row : candidates) {
+            if (row != i && ratings.rating(row, j) > 0) {
+                mostSimilar.offer(row, similarity.of(row));
+            }
+        }
+        mostSimilar.sort();
+
+        return mostSimilar;
+    }
+
+    /**
+     * Similarity of the target row of a query to another row of the same table.
+     */
+    @FunctionalInterface
+    private interface SimilarityFunction {
+
+        double of(int row);
+
+    }
+
+    /**
+     * Bounded heap keeping the {@code k} best rows by similarity descending and row index ascending. The root is
+     * the worst of the kept rows until {@link #sort()} turns the arrays into best-first order.
+     */
+    private static final class TopK {
+
+        final int[] rows;
+        final double[] similarities;
+        private int size;
 
-        for (final List<Integer> row : ratings) {
-            final int sum = row.stream().mapToInt(Integer::intValue).sum();
-            final int count = (int) row.stream().filter(x -> x != 0).count();
+        TopK(int k) {
+            rows = new int[Math.max(k, 0)];
+            similarities = new double[Math.max(k, 0)];
+        }
+
+        void offer(int row, double similarity) {
+            if (size < rows.length) {
+                rows[size] = row;
+                similarities[size] = similarity;
+                siftUp(size++);
+            } else if (size > 0 && isWorse(rows[0], similarities[0], row, similarity)) {
+                rows[0] = row;
+                similarities[0] = similarity;
+                siftDown(0, size);
+            }
+        }
+
+        /**
+         * Sorts the kept rows best first.
+         */
+        void sort() {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void siftUp(int node) {
+            while (node > 0) {
+                final int parent = (node - 1) / 2;
+                if (!isWorse(rows[node], similarities[node], rows[parent], similarities[parent])) {
+                    return;
+                }
+                swap(node, parent);
+                node = parent;
+            }
+        }
+
+        private void siftDown(int node, int end) {
+            while (true) {
+                int worst = node;
+                final int left = 2 * node + 1;
+                final int right = left + 1;
+
+                if (left < end && isWorse(rows[left], similarities[left], rows[worst], similarities[worst])) {
+                    worst = left;
+                }
+                if (right < end && isWorse(rows[right], similarities[right], rows[worst], similarities[worst])) {
+                    worst = right;
+                }
+                if (worst == node) {
+                    return;
+                }
+
+                swap(node, worst);
+                node = worst;
+            }
+        }
+
+        private void swap(int first, int second) {
+            final int row = rows[first];
+            rows[first] = rows[second];
+            rows[second] = row;
+
+            final double similarity = similarities[first];
+            similarities[first] = similarities[second];
+            similarities[second] = similarity;
+        }
+
+        private static boolean isWorse(int row, double similarity, int otherRow, double otherSimilarity) {
+            final int comparison = Double.compare(similarity, otherSimilarity);
+
+            return comparison != 0 ? comparison < 0 : row > otherRow;
+        }
+
+    }
+
+    /**
+     * Ratings with one row per item (or per user) held in primitive arrays, together with the mean centered rows
+     * and their norms, which are computed once when the matrix is loaded.
+     */
+    private static final class RatingMatrix {
+
+        /**
+         * Columns per block of {@link #similarityRow(int, double[])}, 8 KiB of the target row.
+         */
+        private static final int COLUMN_BLOCK = 1024;
+
+        private final int[][] ratings;
+        private final double[][] normalized;
+        private final double[] norms;
+
+        /**
+         * Number of changes of every row, used to tell stale cached similarities apart.
+         */
+        private final int[] versions;
+        private int modifications;
+        private boolean vectorized;
+
+        /**
+         * Inverted index: the rows with a positive rating in every column, in ascending order.
+         */
+        private final int[][] raters;
+
+        RatingMatrix(int[][] ratings) {
+            this.ratings = ratings;
+            this.normalized = new double[ratings.length][];
+            this.norms = new double[ratings.length];
+            this.versions = new int[ratings.length];
+
+            for (int row = 0; row < ratings.length; row++) {
+                normalized[row] = new double[ratings[row].length];
+                normalize(row);
+            }
+
+            final int columns = ratings.length == 0 ? 0 : ratings[0].length;
+            final int[] counts = new int[columns];
+            for (final int[] values : ratings) {
+                for (int column = 0; column < columns; column++) {
+                    if (values[column] > 0) {
+                        counts[column]++;
+                    }
+                }
+            }
+
+            raters = new int[columns][];
+            for (int column = 0; column < columns; column++) {
+                raters[column] = new int[counts[column]];
+                counts[column] = 0;
+            }
+            for (int row = 0; row < ratings.length; row++) {
+                for (int column = 0; column < columns; column++) {
+                    if (ratings[row][column] > 0) {
+                        raters[column][counts[column]++] = row;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Mean centers one row in place and recomputes its norm.
+         */
+        private void normalize(int row) {
+            final int[] values = ratings[row];
+
+            int sum = 0;
+            int count = 0;
+            for (final int value : values) {
+                sum += value;
+                if (value != 0) {
+                    count++;
+                }
+            }
             final double mean = (double) sum / count;
 
-            final List<Double> normalizedRow = row.stream()
-                .map(item -> item == 0 ? 0 : item - mean)
-                .collect(Collectors.toList());
+            final double[] normalizedRow = normalized[row];
+            for (int i = 0; i < values.length; i++) {
+                normalizedRow[i] = values[i] == 0 ? 0 : values[i] - mean;
+            }
+
+            // DoubleStream.sum() is compensated, keep it so the similarities do not change
+            norms[row] = Math.sqrt(Arrays.stream(normalizedRow).map(x -> x * x).sum());
+        }
+
+        /**
+         * Sets one rating, 0 meaning no rating, and updates the row and the inverted index of the column.
+         */
+        void set(int row, int column, int rating) {
+            final int previous = ratings[row][column];
+            if (previous == rating) {
+                return;
+            }
+
+            ratings[row][column] = rating;
+            normalize(row);
+            versions[row]++;
+            modifications++;
+
+            final int[] columnRaters = raters[column];
+            final int position = Arrays.binarySearch(columnRaters, row);
+            if (rating > 0 && position < 0) {
+                final int insertion = -position - 1;
+                final int[] updated = new int[columnRaters.length + 1];
+                System.arraycopy(columnRaters, 0, updated, 0, insertion);
+                updated[insertion] = row;
+                System.arraycopy(columnRaters, insertion, updated, insertion + 1, columnRaters.length - insertion);
+                raters[column] = updated;
+            } else if (rating <= 0 && position >= 0) {
+                final int[] updated = new int[columnRaters.length - 1];
+                System.arraycopy(columnRaters, 0, updated, 0, position);
+                System.arraycopy(columnRaters, position + 1, updated, position, updated.length - position);
+                raters[column] = updated;
+            }
+        }
+
+        /**
+         * Versions of both rows of a pair, smaller row first, as stored with a cached similarity.
+         */
+        long stamp(int first, int second) {
+            return ((long) versions[Math.min(first, second)] << 32) | (versions[Math.max(first, second)] & 0xFFFFFFFFL);
+        }
+
+        int size() {
+            return ratings.length;
+        }
+
+        int columns() {
+            return ratings.length == 0 ? 0 : ratings[0].length;
+        }
+
+        /**
+         * Number of rating changes since the matrix was loaded.
+         */
+        int modifications() {
+            return modifications;
+        }
+
+        /**
+         * Number of changes of one row since the matrix was loaded.
+         */
+        int version(int row) {
+            return versions[row];
+        }
+
+        double[] normalized(int row) {
+            return normalized[row];
+        }
+
+        int[] raters(int column) {
+            return raters[column];
+        }
+
+        int rating(int row, int column) {
+            return ratings[row][column];
+        }
+
+        /**
+         * Switches dot products to {@link VectorDot}, whose lane-wise sums may differ in the last bits.
+         */
+        void useVectorKernel() {
+            vectorized = true;
+        }
+
+        double cosineSimilarity(int first, int second) {
+            final double[] firstRow = normalized[first];
+            final double numerator = dot(firstRow, normalized[second], 0, firstRow.length);
+            final double denominator = norms[first] * norms[second];
+
+            return denominator == 0.0 ? 0.0 : numerator / denominator;
+        }
+
+        /**
+         * Fills {@code into} with the similarities of {@code row} to every row, computed as a matrix-vector product
+         * over blocks of {@link #COLUMN_BLOCK} columns so that the block of the target row stays in cache while the
+         * other rows stream past. Partial dot products are added per block, so the results may differ from
+         * {@link #cosineSimilarity(int, int)} in the last bits.
+         */
+        void similarityRow(int row, double[] into) {
+            final double[] target = normalized[row];
+            final int columns = target.length;
+
+            Arrays.fill(into, 0.0);
+            for (int from = 0; from < columns; from += COLUMN_BLOCK) {
+                final int to = Math.min(from + COLUMN_BLOCK, columns);
+                for (int other = 0; other < ratings.length; other++) {
+                    into[other] += dot(target, normalized[other], from, to);
+                }
+            }
+
+            for (int other = 0; other < ratings.length; other++) {
+                final double denominator = norms[row] * norms[other];
+                into[other] = denominator == 0.0 ? 0.0 : into[other] / denominator;
+            }
+        }
 
-            normalizedRatings.add(normalizedRow);
+        private double dot(double[] first, double[] second, int from, int to) {
+            if (vectorized) {
+                return VectorDot.dot(first, second, from, to);
+            }
+
+            double sum = 0.0;
+            for (int i = from; i < to; i++) {
+                sum += first[i] * second[i];
+            }
+
+            return sum;
         }
 
-        return normalizedRatings;
     }
 
-    private static Double cosineSimilarity(List<Double> firstRow, List<Double> secondRow) {
-        double numerator = 0.0;
-        for (int i = 0, n = firstRow.size(); i < n; i++) {
-            numerator += (firstRow.get(i) * secondRow.get(i));
+    /**
+     * Optional vectorized dot product from {@code src-simd/VectorKernel.java}. The kernel is looked up by name, so
+     * this file still compiles and runs without the incubator vector module; see that file for how to enable it.
+     */
+    private static final class VectorDot {
+
+        private static final MethodHandle KERNEL = lookup();
+
+        private static MethodHandle lookup() {
+            try {
+                return MethodHandles.publicLookup().findStatic(Class.forName("VectorKernel"), "dot",
+                    MethodType.methodType(double.class, double[].class, double[].class, int.class, int.class));
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
         }
 
-        final double denominator = Math.sqrt(firstRow.stream().mapToDouble(x -> x * x).sum()) *
-            Math.sqrt(secondRow.stream().mapToDouble(x -> x * x).sum());
+        static boolean available() {
+            return KERNEL != null;
+        }
+
+        static double dot(double[] first, double[] second, int from, int to) {
+            try {
+                return (double) KERNEL.invokeExact(first, second, from, to);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
 
-        return denominator == 0.0 ? 0.0 : numerator / denominator;
     }
 
-    public void processQueries() {
-        for (final List<Integer> query : queryList) {
-            final int i = query.get(0) - 1;
-            final int j = query.get(1) - 1;
-            final int t = query.get(2);
-            final int k = query.get(3);
+    /**
+     * Random hyperplane LSH over the mean centered rows. Every row gets {@code bands * bandRows} sign bits, one per
+     * random Gaussian hyperplane; rows whose bits agree in at least one band of {@code bandRows} bits collide and
+     * are the neighbor candidates of each other. Each band keeps its rows sorted by band key, so a bucket is a
+     * contiguous range found by binary search. After rating updates only the rows whose version changed get new
+     * signatures, and only their entries move within the bands.
+     */
+    private static final class LshIndex {
+
+        /**
+         * Modification count of the matrix the index is up to date with.
+         */
+        int modifications;
 
-            final double recommendationResult = (t == 0) ?
-                getRecommendationRating(i, j, k, t, numberOfItems, itemsTable, normalizedItemRatings) :
-                getRecommendationRating(j, i, k, t, numberOfUsers, usersTable, normalizedUserRatings);
+        private final int bands;
+        private final int bandRows;
+        private final int columns;
+        private final int planes;
+        private final int[] keys;
 
-            System.out.println(formatResult(recommendationResult));
+        /**
+         * Row versions the signatures were computed from.
+         */
+        private final int[] versions;
+
+        /**
+         * Hyperplane coordinates, column major so that a sparse row touches contiguous memory.
+         */
+        private final double[] hyperplanes;
+        private final double[] projections;
+
+        /**
+         * Per band, {@code key << 32 | row} in ascending order.
+         */
+        private final long[][] buckets;
+
+        LshIndex(RatingMatrix ratings, int bands, int bandRows, long seed) {
+            this.modifications = ratings.modifications();
+            this.bands = bands;
+            this.bandRows = bandRows;
+            this.columns = ratings.columns();
+            this.planes = bands * bandRows;
+
+            final int rows = ratings.size();
+
+            final Random random = new Random(seed);
+            hyperplanes = new double[columns * planes];
+            for (int i = 0; i < hyperplanes.length; i++) {
+                hyperplanes[i] = random.nextGaussian();
+            }
+
+            keys = new int[rows * bands];
+            versions = new int[rows];
+            projections = new double[planes];
+            for (int row = 0; row < rows; row++) {
+                versions[row] = ratings.version(row);
+                signature(ratings.normalized(row), row);
+            }
+
+            buckets = new long[bands][rows];
+            for (int band = 0; band < bands; band++) {
+                for (int row = 0; row < rows; row++) {
+                    buckets[band][row] = ((long) keys[row * bands + band] << 32) | row;
+                }
+                Arrays.sort(buckets[band]);
+            }
         }
+
+        /**
+         * Computes the band keys of one row into {@link #keys}.
+         */
+        private void signature(double[] values, int row) {
+            Arrays.fill(projections, 0.0);
+            for (int column = 0; column < columns; column++) {
+                final double value = values[column];
+                if (value != 0.0) {
+                    for (int plane = 0, base = column * planes; plane < planes; plane++) {
+                        projections[plane] += value * hyperplanes[base + plane];
+                    }
+                }
+            }
+
+            for (int band = 0; band < bands; band++) {
+                int key = 0;
+                for (int bit = 0; bit < bandRows; bit++) {
+                    key = (key << 1) | (projections[band * bandRows + bit] > 0.0 ? 1 : 0);
+                }
+                keys[row * bands + band] = key;
+            }
+        }
+
+        /**
+         * Recomputes the signatures of the rows changed since the last update and moves their entries to the new
+         * buckets; the sorted order of every band is kept by shifting the entries in between.
+         */
+        void update(RatingMatrix ratings) {
+            final int[] previous = new int[bands];
+
+            for (int row = 0; row < versions.length; row++) {
+                final int version = ratings.version(row);
+                if (version == versions[row]) {
+                    continue;
+                }
+                versions[row] = version;
+
+                System.arraycopy(keys, row * bands, previous, 0, bands);
+                signature(ratings.normalized(row), row);
+
+                for (int band = 0; band < bands; band++) {
+                    final int key = keys[row * bands + band];
+                    if (key != previous[band]) {
+                        move(buckets[band], ((long) previous[band] << 32) | row, ((long) key << 32) | row);
+                    }
+                }
+            }
+
+            modifications = ratings.modifications();
+        }
+
+        /**
+         * Replaces {@code from} by {@code to} in a sorted band.
+         */
+        private static void move(long[] bucket, long from, long to) {
+            final int position = Arrays.binarySearch(bucket, from);
+            int insertion = -Arrays.binarySearch(bucket, to) - 1;
+
+            if (insertion > position) {
+                insertion--;
+                System.arraycopy(bucket, position + 1, bucket, position, insertion - position);
+            } else {
+                System.arraycopy(bucket, insertion, bucket, insertion + 1, position - insertion);
+            }
+            bucket[insertion] = to;
+        }
+
+        /**
+         * Rows sharing at least one band bucket with {@code row}, without {@code row} itself, in ascending order.
+         */
+        int[] collisions(int row) {
+            int[] found = new int[16];
+            int size = 0;
+
+            for (int band = 0; band < bands; band++) {
+                final long[] bucket = buckets[band];
+                final long key = (long) keys[row * bands + band] << 32;
+
+                int start = Arrays.binarySearch(bucket, key);
+                if (start < 0) {
+                    start = -start - 1;
+                }
+                for (int n = start; n < bucket.length && (bucket[n] & 0xFFFFFFFF00000000L) == key; n++) {
+                    final int other = (int) bucket[n];
+                    if (other != row) {
+                        if (size == found.length) {
+                            found = Arrays.copyOf(found, size * 2);
+                        }
+                        found[size++] = other;
+                    }
+                }
+            }
+
+            Arrays.sort(found, 0, size);
+            int unique = 0;
+            for (int n = 0; n < size; n++) {
+                if (unique == 0 || found[unique - 1] != found[n]) {
+                    found[unique++] = found[n];
+                }
+            }
+
+            return Arrays.copyOf(found, unique);
+        }
+
+    }
+
+    /**
+     * Recall of the approximate neighbors against the exact ones, collected when {@code --recall} is given.
+     */
+    private static final class RecallStats {
+
+        private long queries;
+        private long fallbacks;
+        private long candidates;
+        private long expected;
+        private long found;
+
+        synchronized void record(TopK approximate, TopK exact, int scored, boolean fallback) {
+            queries++;
+            candidates += scored;
+            if (fallback) {
+                fallbacks++;
+            }
+
+            expected += exact.size();
+            for (int n = 0; n < approximate.size(); n++) {
+                for (int m = 0; m < exact.size(); m++) {
+                    if (approximate.rows[n] == exact.rows[m]) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "lsh recall: %.4f (%d of %d neighbors), %d of %d queries fell back to " +
+                    "the exact scan, %.1f candidates per query",
+                expected == 0 ? 1.0 : (double) found / expected, found, expected, fallbacks, queries,
+                queries == 0 ? 0.0 : (double) candidates / queries);
+        }
+
+    }
+
+    /**
+     * Binary model of both tables: a header followed by one {@link ModelLayout} per table, item table first. All
+     * numbers are big endian and every section starts at a multiple of 8 bytes, so the file can be read straight
+     * from a memory mapping.
+     */
+    private static final class NeighborModel {
+
+        private static final int MAGIC = 0x43464D31;
+        private static final int HEADER_SIZE = 40;
+
+        private final ModelTable[] tables;
+
+        private NeighborModel(ModelTable[] tables) {
+            this.tables = tables;
+        }
+
+        int items() {
+            return tables[0].layout.rows;
+        }
+
+        int users() {
+            return tables[1].layout.rows;
+        }
+
+        ModelTable table(int t) {
+            return tables[t];
+        }
+
+        static NeighborModel open(Path path) throws IOException {
+            final MappedFile file = new MappedFile(path);
+            if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+                throw new IOException("Not a model file: " + path);
+            }
+
+            final int neighbors = file.getInt(4);
+            final ModelTable[] tables = new ModelTable[2];
+            long offset = HEADER_SIZE;
+            for (int t = 0; t < 2; t++) {
+                final long header = 8 + t * 16L;
+                final ModelLayout layout = new ModelLayout(offset, file.getInt(header), file.getInt(header + 4),
+                    file.getLong(header + 8), neighbors);
+                tables[t] = new ModelTable(file, layout);
+                offset = layout.end;
+            }
+            if (offset != file.size()) {
+                throw new IOException("Truncated model file: " + path);
+            }
+
+            return new NeighborModel(tables);
+        }
+
+        static void write(Path path, RatingMatrix items, RatingMatrix users, int neighbors, ForkJoinPool pool)
+            throws IOException {
+            final RatingMatrix[] matrices = {items, users};
+            final ModelLayout[] layouts = new ModelLayout[2];
+            long offset = HEADER_SIZE;
+            for (int t = 0; t < 2; t++) {
+                layouts[t] = new ModelLayout(offset, matrices[t].size(), matrices[t].columns(),
+                    ratingCount(matrices[t]), neighbors);
+                offset = layouts[t].end;
+            }
+
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(neighbors);
+                for (final ModelLayout layout : layouts) {
+                    out.writeInt(layout.rows);
+                    out.writeInt(layout.columns);
+                    out.writeLong(layout.ratingCount);
+                }
+
+                long position = HEADER_SIZE;
+                for (int t = 0; t < 2; t++) {
+                    position = writeTable(out, position, matrices[t], layouts[t], pool);
+                }
+            }
+        }
+
+        private static long ratingCount(RatingMatrix matrix) {
+            long count = 0;
+            for (int column = 0; column < matrix.columns(); column++) {
+                count += matrix.raters(column).length;
+            }
+
+            return count;
+        }
+
+        private static long writeTable(DataOutputStream out, long position, RatingMatrix matrix, ModelLayout layout,
+            ForkJoinPool pool) throws IOException {
+            final int rows = layout.rows;
+            final int columns = layout.columns;
+
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    final int rating = matrix.rating(row, column);
+                    if (rating < 0 || rating > Byte.MAX_VALUE) {
+                        throw new IllegalArgumentException("Rating does not fit into the model file: " + rating);
+                    }
+                    out.writeByte(rating);
+                }
+            }
+            position = pad(out, position + (long) rows * columns, layout.norms);
+
+            for (int row = 0; row < rows; row++) {
+                out.writeDouble(matrix.norms[row]);
+            }
+            for (int row = 0; row < rows; row++) {
+                for (final double value : matrix.normalized(row)) {
+                    out.writeDouble(value);
+                }
+            }
+
+            long raterOffset = 0;
+            for (int column = 0; column < columns; column++) {
+                out.writeLong(raterOffset);
+                raterOffset += matrix.raters(column).length;
+            }
+            out.writeLong(raterOffset);
+            for (int column = 0; column < columns; column++) {
+                for (final int row : matrix.raters(column)) {
+                    out.writeInt(row);
+                }
+            }
+            position = pad(out, layout.raters + raterOffset * Integer.BYTES, layout.neighborRows);
+
+            final int[] neighborRows = new int[rows * layout.neighbors];
+            final double[] neighborSimilarities = new double[rows * layout.neighbors];
+            Arrays.fill(neighborRows, -1);
+            try {
+                pool.submit(() -> IntStream.range(0, rows).parallel().forEach(row -> {
+                    final TopK mostSimilar = new TopK(layout.neighbors);
+                    for (int other = 0; other < rows; other++) {
+                        if (other != row) {
+                            mostSimilar.offer(other, matrix.cosineSimilarity(row, other));
+                        }
+                    }
+                    mostSimilar.sort();
+
+                    System.arraycopy(mostSimilar.rows, 0, neighborRows, row * layout.neighbors, mostSimilar.size());
+                    System.arraycopy(mostSimilar.similarities, 0, neighborSimilarities, row * layout.neighbors,
+                        mostSimilar.size());
+                })).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+
+            for (final int row : neighborRows) {
+                out.writeInt(row);
+            }
+            position = pad(out, layout.neighborRows + (long) neighborRows.length * Integer.BYTES,
+                layout.neighborSimilarities);
+            for (final double similarity : neighborSimilarities) {
+                out.writeDouble(similarity);
+            }
+
+            return position + (long) neighborSimilarities.length * Double.BYTES;
+        }
+
+        private static long pad(DataOutputStream out, long position, long target) throws IOException {
+            for (; position < target; position++) {
+                out.writeByte(0);
+            }
+
+            return position;
+        }
+
+    }
+
+    /**
+     * Offsets of the sections of one table in the model file: ratings as bytes, norms, mean centered rows, the
+     * raters of every column as offsets and row indexes, and {@code neighbors} most similar rows of every row with
+     * their similarities, best first and padded with row -1.
+     */
+    private static final class ModelLayout {
+
+        final int rows;
+        final int columns;
+        final long ratingCount;
+        final int neighbors;
+
+        final long ratings;
+        final long norms;
+        final long normalized;
+        final long raterOffsets;
+        final long raters;
+        final long neighborRows;
+        final long neighborSimilarities;
+        final long end;
+
+        ModelLayout(long offset, int rows, int columns, long ratingCount, int neighbors) {
+            this.rows = rows;
+            this.columns = columns;
+            this.ratingCount = ratingCount;
+            this.neighbors = neighbors;
+
+            ratings = offset;
+            norms = align(ratings + (long) rows * columns);
+            normalized = norms + (long) rows * Double.BYTES;
+            raterOffsets = normalized + (long) rows * columns * Double.BYTES;
+            raters = raterOffsets + (columns + 1L) * Long.BYTES;
+            neighborRows = align(raters + ratingCount * Integer.BYTES);
+            neighborSimilarities = align(neighborRows + (long) rows * neighbors * Integer.BYTES);
+            end = neighborSimilarities + (long) rows * neighbors * Double.BYTES;
+        }
+
+        private static long align(long offset) {
+            return (offset + 7) & ~7L;
+        }
+
+    }
+
+    /**
+     * One table of a mapped model, answering queries the same way as {@link RatingMatrix} does.
+     */
+    private static final class ModelTable {
+
+        private final MappedFile file;
+        private final ModelLayout layout;
+
+        ModelTable(MappedFile file, ModelLayout layout) {
+            this.file = file;
+            this.layout = layout;
+        }
+
+        /**
+         * The stored neighbor list is a prefix of all rows ordered by similarity and row index, so its first
+         * {@code k} raters of the column are the exact answer. Only when the list holds fewer raters and does not
+         * hold every row are the raters of the column scored from the mapped rows.
+         */
+        double predict(int row, int column, int k) {
+            final TopK mostSimilar = new TopK(k);
+            final long base = (long) row * layout.neighbors;
+
+            for (int n = 0; n < layout.neighbors && mostSimilar.size() < k; n++) {
+                final int other = file.getInt(layout.neighborRows + (base + n) * Integer.BYTES);
+                if (other < 0) {
+                    break;
+                }
+                if (rating(other, column) > 0) {
+                    mostSimilar.offer(other, file.getDouble(layout.neighborSimilarities + (base + n) * Double.BYTES));
+                }
+            }
+
+            if (mostSimilar.size() < k && layout.neighbors < layout.rows - 1) {
+                final TopK exact = new TopK(k);
+                final long first = file.getLong(layout.raterOffsets + (long) column * Long.BYTES);
+                final long last = file.getLong(layout.raterOffsets + (column + 1L) * Long.BYTES);
+                for (long n = first; n < last; n++) {
+                    final int other = file.getInt(layout.raters + n * Integer.BYTES);
+                    if (other != row) {
+                        exact.offer(other, cosineSimilarity(row, other));
+                    }
+                }
+                exact.sort();
+
+                return weightedAverage(exact, other -> rating(other, column));
+            }
+
+            mostSimilar.sort();
+            return weightedAverage(mostSimilar, other -> rating(other, column));
+        }
+
+        int rating(int row, int column) {
+            return file.getByte(layout.ratings + (long) row * layout.columns + column);
+        }
+
+        double cosineSimilarity(int first, int second) {
+            final long firstRow = layout.normalized + (long) first * layout.columns * Double.BYTES;
+            final long secondRow = layout.normalized + (long) second * layout.columns * Double.BYTES;
+
+            double numerator = 0.0;
+            for (int i = 0, n = layout.columns; i < n; i++) {
+                numerator += file.getDouble(firstRow + (long) i * Double.BYTES) *
+                    file.getDouble(secondRow + (long) i * Double.BYTES);
+            }
+
+            final double denominator = file.getDouble(layout.norms + (long) first * Double.BYTES) *
+                file.getDouble(layout.norms + (long) second * Double.BYTES);
+
+            return denominator == 0.0 ? 0.0 : numerator / denominator;
+        }
+
+    }
+
+    /**
+     * Read only mapping of a whole file in windows of {@link #WINDOW_SIZE} bytes. Values must be aligned to their
+     * size, so none of them crosses a window boundary.
+     */
+    private static final class MappedFile {
+
+        private static final long WINDOW_SIZE = 1L << 30;
+
+        private final MappedByteBuffer[] windows;
+        private final long size;
+
+        MappedFile(Path path) throws IOException {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                size = channel.size();
+                windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+                for (int w = 0; w < windows.length; w++) {
+                    final long position = w * WINDOW_SIZE;
+                    windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(WINDOW_SIZE, size - position));
+                }
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        byte getByte(long offset) {
+            return windows[(int) (offset / WINDOW_SIZE)].get((int) (offset % WINDOW_SIZE));
+        }
+
+        int getInt(long offset) {
+            return windows[(int) (offset / WINDOW_SIZE)].getInt((int) (offset % WINDOW_SIZE));
+        }
+
+        long getLong(long offset) {
+            return windows[(int) (offset / WINDOW_SIZE)].getLong((int) (offset % WINDOW_SIZE));
+        }
+
+        double getDouble(long offset) {
+            return windows[(int) (offset / WINDOW_SIZE)].getDouble((int) (offset % WINDOW_SIZE));
+        }
+
     }
 
-    private Double getRecommendationRating(int i, int j, int k, int t, int n, List<List<Integer>> ratings,
-        List<List<Double>> normalizedRatings) {
-        final Map<Integer, Double> similarityMap = new HashMap<>();
+    /**
+     * Fixed capacity cache of similarities with one entry per unordered pair of rows, keyed by the table type and
+     * both row indexes packed into a {@code long}. Entries live in flat arrays and are found through an open
+     * addressing index; once the cache is full, CLOCK picks the entry to evict. The arrays start small and double
+     * as entries are added, so a large capacity costs memory only when it is used.
+     */
+    private static final class SimilarityCache {
+
+        private static final int INITIAL_ENTRIES = 1024;
+
+        private final int capacity;
+        private long[] keys;
+        private long[] stamps;
+        private double[] values;
+        private boolean[] referenced;
+
+        /**
+         * Open addressing index holding entry number + 1, or 0 for a free slot.
+         */
+        private int[] index;
+        private int mask;
+
+        private int size;
+        private int hand;
+
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        SimilarityCache(int capacity) {
+            this.capacity = capacity;
+            this.keys = new long[0];
+            this.stamps = new long[0];
+            this.values = new double[0];
+            this.referenced = new boolean[0];
+            this.index = new int[4];
+            this.mask = index.length - 1;
+        }
+
+        static long key(int t, int first, int second) {
+            final int min = Math.min(first, second);
+            final int max = Math.max(first, second);
 
-        final List<Double> itemI = normalizedRatings.get(i);
-        for (int row = 0; row < n; row++) {
-            if (row == i) {
-                continue;
+            return ((long) t << 63) | ((long) min << 32) | max;
+        }
+
+        /**
+         * Returns the cached similarity, or {@code NaN} if the pair is not cached or was cached for other versions
+         * of the rows.
+         */
+        double get(long key, long stamp) {
+            final int slot = find(key);
+            if (index[slot] == 0 || stamps[index[slot] - 1] != stamp) {
+                misses++;
+                return Double.NaN;
+            }
+
+            final int entry = index[slot] - 1;
+            referenced[entry] = true;
+            hits++;
+
+            return values[entry];
+        }
+
+        void put(long key, long stamp, double value) {
+            if (capacity == 0) {
+                return;
             }
 
-            final Double cachedSimilarity = similarityCache.get(List.of(t, i, row));
-            if (cachedSimilarity != null) {
-                similarityMap.put(row, cachedSimilarity);
+            final int slot = find(key);
+            if (index[slot] != 0) {
+                stamps[index[slot] - 1] = stamp;
+                values[index[slot] - 1] = value;
+                return;
+            }
+
+            final int entry;
+            if (size < capacity) {
+                if (size == keys.length) {
+                    grow();
+                }
+                entry = size++;
             } else {
-                final Double coefficient = cosineSimilarity(itemI, normalizedRatings.get(row));
-                similarityMap.put(row, coefficient);
+                entry = evict();
+            }
+
+            keys[entry] = key;
+            stamps[entry] = stamp;
+            values[entry] = value;
+            referenced[entry] = false;
+            // the slot found before may have moved during eviction
+            index[find(key)] = entry + 1;
+        }
+
+        /**
+         * Doubles the entry arrays up to the capacity and rebuilds the index at four slots per entry.
+         */
+        private void grow() {
+            final int length = (int) Math.min(Math.max(2L * keys.length, INITIAL_ENTRIES), capacity);
+            keys = Arrays.copyOf(keys, length);
+            stamps = Arrays.copyOf(stamps, length);
+            values = Arrays.copyOf(values, length);
+            referenced = Arrays.copyOf(referenced, length);
 
-                similarityCache.put(List.of(t, i, row), coefficient);
-                similarityCache.put(List.of(t, row, i), coefficient);
+            index = new int[Integer.highestOneBit(length) * 4];
+            mask = index.length - 1;
+            for (int entry = 0; entry < size; entry++) {
+                index[find(keys[entry])] = entry + 1;
             }
         }
 
-        final List<Integer> indexesOfMostSimilarItems = similarityMap.entrySet().stream()
-            .sorted(Map.Entry.<Integer, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
-            .filter(x -> ratings.get(x.getKey()).get(j) > 0)
-            .limit(k)
-            .filter(x -> x.getValue() > 0)
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toList());
+        private int evict() {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % capacity;
+            }
 
-        final double nominator = indexesOfMostSimilarItems.stream()
-            .mapToDouble(x -> similarityMap.get(x) * ratings.get(x).get(j))
-            .sum();
+            final int entry = hand;
+            hand = (hand + 1) % capacity;
+            remove(find(keys[entry]));
+            evictions++;
 
-        final double denominator = indexesOfMostSimilarItems.stream().mapToDouble(similarityMap::get).sum();
+            return entry;
+        }
+
+        private int find(long key) {
+            int slot = mix(key) & mask;
+            while (index[slot] != 0 && keys[index[slot] - 1] != key) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        /**
+         * Frees an index slot, shifting later entries of the probe sequence back so that lookups keep working.
+         */
+        private void remove(int slot) {
+            int gap = slot;
+
+            for (int next = (gap + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+                final int home = mix(keys[index[next] - 1]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    index[gap] = index[next];
+                    gap = next;
+                }
+            }
+
+            index[gap] = 0;
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+            return (int) (h ^ (h >>> 16));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "similarity cache: %d hits, %d misses, %d evictions, %d of %d entries",
+                hits, misses, evictions, size, capacity);
+        }
+
+    }
+
+    /**
+     * One line of the query section: a prediction ({@link Query}) or a rating change ({@link Update}).
+     */
+    private abstract static class Command {
+    }
+
+    private static class Query extends Command {
+
+        final int i;
+        final int j;
+        final int t;
+        final int k;
+
+        public Query(final int i, final int j, final int t, final int k) {
+            this.i = i;
+            this.j = j;
+            this.t = t;
+            this.k = k;
+        }
+
+        /**
+         * Row of the queried table the prediction is made for: the item for item-item queries, the user otherwise.
+         */
+        int row() {
+            return t == 0 ? i : j;
+        }
+
+        int column() {
+            return t == 0 ? j : i;
+        }
+
+    }
+
+    /**
+     * {@code set item user rating} or {@code remove item user}, the latter stored as rating 0.
+     */
+    private static class Update extends Command {
+
+        final int item;
+        final int user;
+        final int rating;
+
+        public Update(final int item, final int user, final int rating) {
+            this.item = item;
+            this.user = user;
+            this.rating = rating;
+        }
+
+    }
+
+    private static final class Options {
+
+        int cacheCapacity = 1 << 20;
+        boolean cacheStats;
+        boolean batch;
+        boolean denseRows;
+        boolean simd;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean approx;
+        int bands = 20;
+        int bandRows = 4;
+        long seed;
+        boolean recall;
+        Path build;
+        Path model;
+        int neighbors = 100;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--cache-capacity":
+                        options.cacheCapacity = Integer.parseInt(value(args, ++i));
+                        if (options.cacheCapacity < 0) {
+                            throw new IllegalArgumentException("Cache capacity must not be negative: " +
+                                options.cacheCapacity);
+                        }
+                        break;
+                    case "--cache-stats":
+                        options.cacheStats = true;
+                        break;
+                    case "--batch":
+                        options.batch = true;
+                        break;
+                    case "--dense-rows":
+                        options.denseRows = true;
+                        break;
+                    case "--simd":
+                        options.simd = true;
+                        break;
+                    case "--threads":
+                        options.threads = Integer.parseInt(value(args, ++i));
+                        if (options.threads < 1) {
+                            throw new IllegalArgumentException("Thread count must be positive: " + options.threads);
+                        }
+                        break;
+                    case "--approx":
+                        options.approx = true;
+                        break;
+                    case "--bands":
+                        options.bands = Integer.parseInt(value(args, ++i));
+                        if (options.bands < 1) {
+                            throw new IllegalArgumentException("Band count must be positive: " + options.bands);
+                        }
+                        break;
+                    case "--band-rows":
+                        options.bandRows = Integer.parseInt(value(args, ++i));
+                        if (options.bandRows < 1 || options.bandRows > 31) {
+                            throw new IllegalArgumentException("Rows per band must be between 1 and 31: " +
+                                options.bandRows);
+                        }
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--recall":
+                        options.recall = true;
+                        break;
+                    case "--build":
+                        options.build = Paths.get(value(args, ++i));
+                        break;
+                    case "--model":
+                        options.model = Paths.get(value(args, ++i));
+                        break;
+                    case "--neighbors":
+                        options.neighbors = Integer.parseInt(value(args, ++i));
+                        if (options.neighbors < 1) {
+                            throw new IllegalArgumentException("Neighbor count must be positive: " +
+                                options.neighbors);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                }
+            }
+
+            if (options.recall && !options.approx) {
+                throw new IllegalArgumentException("--recall requires --approx");
+            }
+            if (options.denseRows && !options.batch) {
+                throw new IllegalArgumentException("--dense-rows requires --batch");
+            }
+            if (options.build != null && options.model != null) {
+                throw new IllegalArgumentException("--build and --model cannot be combined");
+            }
+            if (options.model != null && (options.batch || options.approx)) {
+                throw new IllegalArgumentException("--model cannot be combined with --batch or --approx");
+            }
+
+            return options;
+        }
+
+        private static String value(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+            }
+
+            return args[i];
+        }
 
-        return nominator / denominator;
     }
 
 }
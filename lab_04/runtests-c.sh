@@ -0,0 +1,24 @@
+#!/bin/bash
+for i in {2..3} # broj ispitnih primjera
+do
+	# generiraj ime direktorija s vodećom nulom
+	dir=$(printf "%0*d\n" 2 $i)
+	echo "Test $dir"
+	# pokreni Jacobi i Gauss-Seidel do konvergencije, izvještaj o konvergenciji ide na stderr
+	jacobi=`java ./src/NodeRank.java --epsilon 1e-12 < examples/test$dir/R.in 2>&1`
+	seidel=`java ./src/NodeRank.java --epsilon 1e-12 --gauss-seidel < examples/test$dir/R.in 2>&1`
+	jacobiIterations=`echo "$jacobi" | grep -o "converged after [0-9]*" | grep -o "[0-9]*$"`
+	seidelIterations=`echo "$seidel" | grep -o "converged after [0-9]*" | grep -o "[0-9]*$"`
+	# provjeri da su izlazi isti i da Gauss-Seidel treba manje iteracija
+	res=`diff <(echo "$jacobi" | grep -v "^converged") <(echo "$seidel" | grep -v "^converged")`
+	if [ "$res" != "" ] || [ -z "$seidelIterations" ] || [ -z "$jacobiIterations" ] || [ "$seidelIterations" -ge "$jacobiIterations" ]
+	then
+		# izlazi ne odgovaraju
+		echo "FAIL"
+		echo "Jacobi: $jacobiIterations, Gauss-Seidel: $seidelIterations"
+		echo $res
+	else
+		# OK!
+		echo "OK"
+	fi
+done
@@ -0,0 +1,22 @@
+#!/bin/bash
+for i in {9..9} # broj ispitnih primjera
+do
+	# generiraj ime direktorija s vodećom nulom
+	dir=$(printf "%0*d\n" 2 $i)
+	echo "Test $dir"
+	# pokreni program s promjenama bridova, broj guranja i cijena ponovnog računanja idu na stderr
+	res=`java ./src/NodeRank.java --epsilon 1e-10 --stats < examples/test$dir/R.in 2>/tmp/nodeRankStats | diff examples/test$dir/R.out -`
+	pushes=`grep -o "[0-9]* per update" /tmp/nodeRankStats | grep -o "^[0-9]*"`
+	recompute=`grep -o "against [0-9]*" /tmp/nodeRankStats | grep -o "[0-9]*$"`
+	echo "guranja po promjeni: $pushes, ponovno računanje: $recompute"
+	# provjeri izlaz i da promjena košta manje od desetine ponovnog računanja
+	if [ "$res" != "" ] || [ -z "$pushes" ] || [ -z "$recompute" ] || [ $((pushes * 10)) -ge "$recompute" ]
+	then
+		# izlazi ne odgovaraju
+		echo "FAIL"
+		echo $res
+	else
+		# OK!
+		echo "OK"
+	fi
+done
@@ -0,0 +1,20 @@
+#!/bin/bash
+for i in {10..10} # broj ispitnih primjera
+do
+	# generiraj ime direktorija s vodećom nulom
+	dir=$(printf "%0*d\n" 2 $i)
+	echo "Test $dir"
+	# prva polovica upita su personalizirani s cijelim grafom kao sjemenom, druga polovica globalni rangovi istih čvorova
+	out=`java ./src/NodeRank.java --epsilon 1e-12 --walks 200000 < examples/test$dir/R.in 2>/dev/null`
+	# provjeri da se personalizirani rangovi slažu s globalnima do šuma slučajnih šetnji
+	res=`echo "$out" | awk '{ r[NR] = $1 } END { h = NR / 2; if (NR == 0 || NR % 2) print "bad output"; for (k = 1; k <= h; k++) { d = r[k] - r[k + h]; if (d < 0) d = -d; if (d > 0.005) print "node " k - 1 ": " r[k] " vs " r[k + h] } }'`
+	if [ "$res" != "" ]
+	then
+		# izlazi ne odgovaraju
+		echo "FAIL"
+		echo $res
+	else
+		# OK!
+		echo "OK"
+	fi
+done
@@ -1,83 +1,836 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class ClosestBlackNode {
 
     private static final Integer MAX_DISTANCE = 10;
 
-    private final Integer numberOfNodes;
-    private final List<Boolean> isBlackNode;
+    /**
+     * Direction switch of the search: a level is expanded bottom-up once the edges of the frontier exceed
+     * {@code 1 / ALPHA} of the unexplored edges, and top-down again once the frontier holds fewer than
+     * {@code 1 / BETA} of the nodes.
+     */
+    private static final int ALPHA = 14;
+    private static final int BETA = 24;
 
-    private final List<Set<Integer>> edges;
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
 
-    public ClosestBlackNode() throws IOException {
-        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
-            final String[] firstLine = reader.readLine().trim().split(" ");
-            numberOfNodes = Integer.parseInt(firstLine[0]);
-            final int numberOfEdges = Integer.parseInt(firstLine[1]);
+    private final int numberOfNodes;
+    private final boolean[] isBlackNode;
 
-            isBlackNode = new ArrayList<>(numberOfNodes);
-            for (int i = 0; i < numberOfNodes; i++) {
-                isBlackNode.add(reader.readLine().trim().equals("1"));
+    /**
+     * Adjacency in compressed sparse row form: the neighbors of node {@code i} are
+     * {@code neighbors[offsets[i], offsets[i + 1])}, ascending and without repeats once {@link #sortNeighbors()}
+     * has run.
+     */
+    private final int[] offsets;
+    private final int[] neighbors;
+
+    /**
+     * Number of closest black nodes kept per node, and the largest distance at which they are looked for.
+     */
+    private final int numberOfLabels;
+    private final int horizon;
+
+    /**
+     * Labels of node {@code i} in {@code [i * numberOfLabels, (i + 1) * numberOfLabels)}: its closest black nodes
+     * within the horizon, ordered by distance and then by index, and their distances. Unused labels are -1.
+     */
+    private final int[] distance;
+    private final int[] nearest;
+
+    private final int threads;
+    private final boolean stats;
+
+    /**
+     * First node of every chunk of the parallel search, followed by the number of nodes. All but the last one are
+     * multiples of 64, so that every word of a node bitmap belongs to a single chunk.
+     */
+    private int[] chunkStarts;
+    private ForkJoinPool pool;
+
+    /**
+     * Edges added in dynamic mode on top of the sorted adjacency, per node, allocated with the first one.
+     */
+    private NodeBuffer[] addedEdges;
+
+    /**
+     * Nodes whose label changed during a repair, by their new distance, and the repair in which every node was
+     * last queued.
+     */
+    private NodeBuffer[] buckets;
+    private int[] queuedIn;
+    private int repairs;
+    private long repairedLabels;
+
+    /**
+     * Reads the graph from {@code reader}, which is left at the first line after the edges.
+     */
+    public ClosestBlackNode(Options options, BufferedReader reader) throws IOException {
+        numberOfLabels = options.nearest;
+        horizon = options.horizon;
+        threads = options.threads;
+        stats = options.stats;
+
+        final String[] firstLine = reader.readLine().trim().split(" ");
+        numberOfNodes = Integer.parseInt(firstLine[0]);
+        final int numberOfEdges = Integer.parseInt(firstLine[1]);
+
+        isBlackNode = new boolean[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            isBlackNode[i] = reader.readLine().trim().equals("1");
+        }
+
+        final int[] ends = new int[2 * numberOfEdges];
+        offsets = new int[numberOfNodes + 1];
+        for (int i = 0; i < numberOfEdges; i++) {
+            parseEdge(reader.readLine(), numberOfNodes, numberOfNodes + i + 2, ends, 2 * i);
+            offsets[ends[2 * i] + 1]++;
+            offsets[ends[2 * i + 1] + 1]++;
+        }
+        for (int i = 0; i < numberOfNodes; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        neighbors = new int[ends.length];
+        final int[] next = Arrays.copyOf(offsets, numberOfNodes);
+        for (int e = 0; e < ends.length; e += 2) {
+            neighbors[next[ends[e]]++] = ends[e + 1];
+            neighbors[next[ends[e + 1]]++] = ends[e];
+        }
+
+        if ((long) numberOfNodes * numberOfLabels > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many labels: " + numberOfLabels + " for " + numberOfNodes +
+                " nodes");
+        }
+        distance = new int[numberOfNodes * numberOfLabels];
+        nearest = new int[numberOfNodes * numberOfLabels];
+    }
+
+    /**
+     * Parses a line of two space separated node ids into {@code into} at {@code position}.
+     */
+    private static void parseEdge(String line, int n, int lineNumber, int[] into, int position) {
+        int count = 0;
+        int value = -1;
+        for (int c = 0, length = line.length(); c <= length; c++) {
+            final char ch = c < length ? line.charAt(c) : ' ';
+            if (ch >= '0' && ch <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (ch - '0');
+            } else if (Character.isWhitespace(ch)) {
+                if (value >= 0) {
+                    if (value >= n) {
+                        throw new IllegalArgumentException("Node out of range on line " + lineNumber + ": " + value);
+                    }
+                    if (count == 2) {
+                        throw new IllegalArgumentException("More than two nodes on line " + lineNumber);
+                    }
+                    into[position + count++] = value;
+                    value = -1;
+                }
+            } else {
+                throw new NumberFormatException("Unexpected character '" + ch + "' on line " + lineNumber);
             }
+        }
+
+        if (count < 2) {
+            throw new IllegalArgumentException("Missing node on line " + lineNumber);
+        }
+    }
+
+    public void process() {
+        label();
 
-            edges = new ArrayList<>(numberOfEdges);
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        try {
             for (int i = 0; i < numberOfNodes; i++) {
-                edges.add(new TreeSet<>());
+                // closest black nodes and their distances, or -1 -1 when there is none within the horizon
+                final int first = i * numberOfLabels;
+                out.print(nearest[first] + " " + distance[first]);
+                for (int j = first + 1; j < first + numberOfLabels && distance[j] >= 0; j++) {
+                    out.print(" " + nearest[j] + " " + distance[j]);
+                }
+                out.println();
             }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Dynamic mode, for a single closest black node: labels all nodes once, then reads commands from
+     * {@code reader} until its end, one per line.
+     * <ul>
+     *     <li>{@code query node} prints the closest black node and its distance, like a line of the full output</li>
+     *     <li>{@code color node c} makes the node black for {@code 1} and white for {@code 0}</li>
+     *     <li>{@code add from to} adds an edge</li>
+     * </ul>
+     * Every update repairs only the labels it changes. The output is flushed whenever the input has no more
+     * commands ready, so that answers are not held back while waiting for the next one.
+     */
+    public void serve(BufferedReader reader) throws IOException {
+        label();
 
-            for (int i = 0; i < numberOfEdges; i++) {
-                final String[] edge = reader.readLine().trim().split(" ");
-                final int from = Integer.parseInt(edge[0]);
-                final int to = Integer.parseInt(edge[1]);
+        buckets = new NodeBuffer[horizon + 1];
+        for (int d = 0; d <= horizon; d++) {
+            buckets[d] = new NodeBuffer();
+        }
+        queuedIn = new int[numberOfNodes];
+        repairs = 1;
+
+        final long start = System.nanoTime();
+        int updates = 0;
+        int queries = 0;
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                final String[] parts = line.trim().split(" ");
 
-                edges.get(from).add(to);
-                edges.get(to).add(from);
+                switch (parts[0]) {
+                    case "query": {
+                        final int node = checkNode(parts, 2, 1, line);
+                        out.println(nearest[node] + " " + distance[node]);
+                        queries++;
+                        break;
+                    }
+                    case "color": {
+                        final int node = checkNode(parts, 3, 1, line);
+                        if (!parts[2].equals("0") && !parts[2].equals("1")) {
+                            throw new IllegalArgumentException("Unexpected color: " + line);
+                        }
+                        recolor(node, parts[2].equals("1"));
+                        updates++;
+                        break;
+                    }
+                    case "add":
+                        addEdge(checkNode(parts, 3, 1, line), checkNode(parts, 3, 2, line));
+                        updates++;
+                        break;
+                    case "":
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected command: " + line);
+                }
+
+                if (!reader.ready()) {
+                    out.flush();
+                }
             }
+        } finally {
+            out.flush();
+        }
+
+        if (stats) {
+            System.err.println(String.format(Locale.US, "%d updates, %d queries, %d labels changed in %d ms",
+                updates, queries, repairedLabels, (System.nanoTime() - start) / 1_000_000));
         }
     }
 
-    public void process() {
-        loop: for (int i = 0; i < numberOfNodes; i++) {
-            if (isBlackNode.get(i)) {
-                System.out.println(i + " 0");
-                continue;
+    private int checkNode(String[] parts, int length, int index, String line) {
+        if (parts.length != length) {
+            throw new IllegalArgumentException("Malformed command: " + line);
+        }
+
+        final int node = Integer.parseInt(parts[index]);
+        if (node < 0 || node >= numberOfNodes) {
+            throw new IllegalArgumentException("Node out of range: " + node);
+        }
+
+        return node;
+    }
+
+    /**
+     * Sorts the adjacency and labels all nodes with a parallel search.
+     */
+    private void label() {
+        if (threads > 1) {
+            pool = new ForkJoinPool(threads);
+        }
+
+        try {
+            final long start = System.nanoTime();
+            sortNeighbors();
+            search();
+
+            if (stats) {
+                System.err.println(String.format(Locale.US, "%d nodes, %d edges in %d ms on %d threads",
+                    numberOfNodes, offsets[numberOfNodes] / 2, (System.nanoTime() - start) / 1_000_000, threads));
             }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+    }
 
-            Queue<Integer> queue = new PriorityQueue<>(edges.get(i));
+    /**
+     * A node turning black labels itself and lowers the labels around it. A node turning white invalidates the
+     * nodes labeled by it, which are exactly the ones reached from it along edges that increase the distance by one
+     * without leaving its label. They are relabeled from their other neighbors.
+     */
+    private void recolor(int node, boolean black) {
+        if (isBlackNode[node] == black) {
+            return;
+        }
+        isBlackNode[node] = black;
 
-            for (int j = 1; j <= MAX_DISTANCE; j++) {
-                final Queue<Integer> nextQueue = new PriorityQueue<>();
+        if (black) {
+            lower(node, 0, node);
+            propagate();
+            return;
+        }
+
+        // collect the nodes labeled by this one, marking every collected node with nearest -1
+        final NodeBuffer affected = new NodeBuffer();
+        affected.add(node);
+        nearest[node] = -1;
+        for (int i = 0; i < affected.size; i++) {
+            final int from = affected.values[i];
+            for (int k = 0, count = neighborCount(from); k < count; k++) {
+                final int to = neighbor(from, k);
+                if (nearest[to] == node && distance[to] == distance[from] + 1) {
+                    affected.add(to);
+                    nearest[to] = -1;
+                }
+            }
+        }
+        for (int i = 0; i < affected.size; i++) {
+            distance[affected.values[i]] = -1;
+        }
+        repairedLabels += affected.size;
 
-                while (!queue.isEmpty()) {
-                    final int node = queue.remove();
+        for (int i = 0; i < affected.size; i++) {
+            final int to = affected.values[i];
+            for (int k = 0, count = neighborCount(to); k < count; k++) {
+                final int from = neighbor(to, k);
+                if (distance[from] >= 0) {
+                    lower(to, distance[from] + 1, nearest[from]);
+                }
+            }
+        }
+        propagate();
+    }
 
-                    if (isBlackNode.get(node)) {
-                        System.out.println(node + " " + j);
-                        continue loop;
+    /**
+     * Adds an edge unless it exists and lowers the labels its ends can now reach.
+     */
+    private void addEdge(int from, int to) {
+        if (from == to || adjacent(from, to)) {
+            return;
+        }
+
+        if (addedEdges == null) {
+            addedEdges = new NodeBuffer[numberOfNodes];
+        }
+        for (int k = 0; k < 2; k++) {
+            final int node = k == 0 ? from : to;
+            if (addedEdges[node] == null) {
+                addedEdges[node] = new NodeBuffer();
+            }
+            addedEdges[node].add(k == 0 ? to : from);
+        }
+
+        if (distance[from] >= 0) {
+            lower(to, distance[from] + 1, nearest[from]);
+        }
+        if (distance[to] >= 0) {
+            lower(from, distance[to] + 1, nearest[to]);
+        }
+        propagate();
+    }
+
+    /**
+     * Gives {@code node} the label of distance {@code d} and black node {@code label} if it is closer, or as close
+     * with a smaller black node, and queues the node for {@link #propagate()}. A node queued during the current
+     * repair is queued again only when its distance drops, since it then waits in another bucket.
+     */
+    private void lower(int node, int d, int label) {
+        final int old = distance[node];
+        if (d > horizon || old >= 0 && (old < d || old == d && nearest[node] <= label)) {
+            return;
+        }
+
+        distance[node] = d;
+        nearest[node] = label;
+        repairedLabels++;
+        if (queuedIn[node] != repairs || old != d) {
+            queuedIn[node] = repairs;
+            buckets[d].add(node);
+        }
+    }
+
+    /**
+     * Pushes the queued labels to the neighbors in order of distance. A node is lowered only by nodes one step
+     * closer, so its label is final once its bucket is reached, and nodes queued at a distance they no longer have
+     * are skipped.
+     */
+    private void propagate() {
+        for (int d = 0; d < horizon; d++) {
+            final NodeBuffer bucket = buckets[d];
+            for (int i = 0; i < bucket.size; i++) {
+                final int node = bucket.values[i];
+                if (distance[node] != d) {
+                    continue;
+                }
+
+                for (int k = 0, count = neighborCount(node); k < count; k++) {
+                    lower(neighbor(node, k), d + 1, nearest[node]);
+                }
+            }
+            bucket.size = 0;
+        }
+        // nodes at the horizon are not expanded
+        buckets[horizon].size = 0;
+
+        repairs++;
+    }
+
+    private int neighborCount(int node) {
+        final int count = offsets[node + 1] - offsets[node];
+        return addedEdges == null || addedEdges[node] == null ? count : count + addedEdges[node].size;
+    }
+
+    private int neighbor(int node, int k) {
+        final int count = offsets[node + 1] - offsets[node];
+        return k < count ? neighbors[offsets[node] + k] : addedEdges[node].values[k - count];
+    }
+
+    private boolean adjacent(int from, int to) {
+        if (Arrays.binarySearch(neighbors, offsets[from], offsets[from + 1], to) >= 0) {
+            return true;
+        }
+
+        final NodeBuffer added = addedEdges == null ? null : addedEdges[from];
+        for (int k = 0; added != null && k < added.size; k++) {
+            if (added.values[k] == to) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sorts every neighbor list in parallel, then drops the repeated neighbors and closes the gaps they leave.
+     */
+    private void sortNeighbors() {
+        chunkStarts = chunks(threads == 1 ? 1 : threads * 4);
+        forEachChunk((chunk, from, to) -> {
+            for (int i = from; i < to; i++) {
+                Arrays.sort(neighbors, offsets[i], offsets[i + 1]);
+            }
+        });
+
+        int size = 0;
+        for (int i = 0, from = 0; i < numberOfNodes; i++) {
+            final int to = offsets[i + 1];
+            for (int e = from; e < to; e++) {
+                if (e == from || neighbors[e] != neighbors[e - 1]) {
+                    neighbors[size++] = neighbors[e];
+                }
+            }
+            offsets[i + 1] = size;
+            from = to;
+        }
+        chunkStarts = chunks(chunkStarts.length - 1);
+    }
+
+    /**
+     * Splits the nodes into at most {@code count} chunks of about the same number of nodes and edges.
+     */
+    private int[] chunks(int count) {
+        final long work = (long) numberOfNodes + offsets[numberOfNodes];
+
+        final int[] starts = new int[count + 1];
+        int size = 1;
+        for (int i = 64; i < numberOfNodes && size < count; i += 64) {
+            if (i + (long) offsets[i] >= work * size / count) {
+                starts[size++] = i;
+            }
+        }
+        starts[size++] = numberOfNodes;
+
+        return Arrays.copyOf(starts, size);
+    }
+
+    /**
+     * Propagates the labels of the black nodes one distance at a time up to the horizon, keeping the
+     * {@link #numberOfLabels} closest black nodes of every node. A black node that is not among the closest ones of
+     * a node cannot be among the closest ones of its neighbors one step further out either, since the black nodes
+     * that push it out reach them at most one step further out too. So every round passes on only the labels added
+     * in the previous round, to the nodes that still have room.
+     * <p>
+     * The frontier holds the nodes that gained labels in the previous round. The receivers of a round are either
+     * found top-down, from the frontier into its neighbors, or taken bottom-up as all nodes with room, whichever
+     * touches fewer edges. Every receiver then pulls the new labels of its frontier neighbors and keeps the
+     * smallest ones, so the labels do not depend on the direction and the number of threads. Unused labels are
+     * left at -1.
+     */
+    private void search() {
+        final int words = (numberOfNodes + 63) >>> 6;
+        long[] frontier = new long[words];
+        long[] next = new long[words];
+        final long[] receivers = new long[words];
+        Arrays.fill(distance, -1);
+        Arrays.fill(nearest, -1);
+
+        long frontierNodes = 0;
+        long frontierEdges = 0;
+        long openEdges = offsets[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            if (isBlackNode[i]) {
+                final int degree = offsets[i + 1] - offsets[i];
+                distance[i * numberOfLabels] = 0;
+                nearest[i * numberOfLabels] = i;
+                frontier[i >>> 6] |= 1L << i;
+                frontierNodes++;
+                frontierEdges += degree;
+                if (numberOfLabels == 1) {
+                    openEdges -= degree;
+                }
+            }
+        }
+
+        final long start = System.nanoTime();
+        boolean bottomUp = false;
+        int bottomUpLevels = 0;
+        int level = 0;
+        for (; level < horizon && frontierNodes > 0; level++) {
+            bottomUp = bottomUp ? frontierNodes >= numberOfNodes / BETA : frontierEdges > openEdges / ALPHA;
+            if (bottomUp) {
+                receive(frontier, null, next, level);
+                bottomUpLevels++;
+            } else {
+                markReceivers(frontier, receivers);
+                receive(frontier, receivers, next, level);
+            }
+
+            final long[] counts = settle(next, frontier);
+            frontierNodes = counts[0];
+            frontierEdges = counts[1];
+            openEdges -= counts[2];
+
+            final long[] swap = frontier;
+            frontier = next;
+            next = swap;
+        }
+
+        if (stats) {
+            System.err.println(String.format(Locale.US, "%d levels (%d bottom-up) in %d ms", level, bottomUpLevels,
+                (System.nanoTime() - start) / 1_000_000));
+        }
+    }
+
+    /**
+     * Marks the neighbors of the frontier that have room for more labels. The marks are set atomically, since a
+     * node can be reached from several chunks.
+     */
+    private void markReceivers(long[] frontier, long[] receivers) {
+        forEachChunk((chunk, from, to) -> {
+            for (int word = from >>> 6, end = (to + 63) >>> 6; word < end; word++) {
+                for (long bits = frontier[word]; bits != 0; bits &= bits - 1) {
+                    final int node = (word << 6) + Long.numberOfTrailingZeros(bits);
+
+                    for (int e = offsets[node], last = offsets[node + 1]; e < last; e++) {
+                        final int neighbor = neighbors[e];
+                        if (distance[(neighbor + 1) * numberOfLabels - 1] >= 0) {
+                            continue;
+                        }
+
+                        final long bit = 1L << neighbor;
+                        if ((receivers[neighbor >>> 6] & bit) == 0) {
+                            LONGS.getAndBitwiseOr(receivers, neighbor >>> 6, bit);
+                        }
                     }
+                }
+            }
+        });
+    }
+
+    /**
+     * Lets every node in {@code receivers}, or every node when it is {@code null}, pull the labels at distance
+     * {@code level} of its frontier neighbors. Nodes that gain labels are marked in {@code next}. Every chunk writes
+     * only the labels and bitmap words of its own nodes, and clears its words of {@code receivers}.
+     */
+    private void receive(long[] frontier, long[] receivers, long[] next, int level) {
+        forEachChunk((chunk, from, to) -> {
+            final int[] candidates = new int[numberOfLabels];
+
+            for (int word = from >>> 6, end = (to + 63) >>> 6; word < end; word++) {
+                long bits = -1L;
+                if (receivers != null) {
+                    bits = receivers[word];
+                    receivers[word] = 0;
+                }
+
+                for (; bits != 0; bits &= bits - 1) {
+                    final int node = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (node >= to) {
+                        break;
+                    }
+
+                    if (receive(node, frontier, level, candidates)) {
+                        next[word] |= 1L << node;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the smallest new labels at distance {@code level} of the frontier neighbors of {@code node} to its
+     * labels, at distance {@code level + 1}. A neighbor can be receiving labels at the same time, but only after
+     * the ones read here. Returns whether any label was added.
+     */
+    private boolean receive(int node, long[] frontier, int level, int[] candidates) {
+        final int first = node * numberOfLabels;
+        int size = 0;
+        while (size < numberOfLabels && distance[first + size] >= 0) {
+            size++;
+        }
+        final int room = numberOfLabels - size;
+        if (room == 0) {
+            return false;
+        }
+
+        int found = 0;
+        for (int e = offsets[node], last = offsets[node + 1]; e < last; e++) {
+            final int neighbor = neighbors[e];
+            if ((frontier[neighbor >>> 6] & 1L << neighbor) == 0) {
+                continue;
+            }
+
+            for (int j = neighbor * numberOfLabels, end = j + numberOfLabels; j < end; j++) {
+                final int d = distance[j];
+                if (d < 0 || d > level) {
+                    break;
+                }
+                if (d == level && !contains(nearest, first, first + size, nearest[j])) {
+                    found = insert(candidates, found, room, nearest[j]);
+                }
+            }
+        }
+
+        for (int c = 0; c < found; c++) {
+            nearest[first + size + c] = candidates[c];
+            distance[first + size + c] = level + 1;
+        }
+
+        return found > 0;
+    }
+
+    private static boolean contains(int[] values, int from, int to, int value) {
+        for (int i = from; i < to; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Inserts {@code value} into the ascending {@code size} smallest values of {@code into}, keeping at most
+     * {@code limit} of them, and returns the new size.
+     */
+    private static int insert(int[] into, int size, int limit, int value) {
+        int i = size;
+        while (i > 0 && into[i - 1] > value) {
+            i--;
+        }
+        if (i > 0 && into[i - 1] == value || i == limit) {
+            return size;
+        }
+
+        final int moved = Math.min(size, limit - 1) - i;
+        System.arraycopy(into, i, into, i + 1, moved);
+        into[i] = value;
 
-                    nextQueue.addAll(edges.get(node));
+        return i + 1 + moved;
+    }
+
+    /**
+     * Clears {@code previous} for reuse and returns the number of nodes in {@code next}, the sum of their degrees
+     * and the sum of the degrees of those that have no room left.
+     */
+    private long[] settle(long[] next, long[] previous) {
+        final long[] counts = new long[3 * (chunkStarts.length - 1)];
+
+        forEachChunk((chunk, from, to) -> {
+            long nodes = 0;
+            long edges = 0;
+            long filledEdges = 0;
+            for (int word = from >>> 6, end = (to + 63) >>> 6; word < end; word++) {
+                for (long bits = next[word]; bits != 0; bits &= bits - 1) {
+                    final int node = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    final int degree = offsets[node + 1] - offsets[node];
+                    nodes++;
+                    edges += degree;
+                    if (distance[(node + 1) * numberOfLabels - 1] >= 0) {
+                        filledEdges += degree;
+                    }
                 }
+                previous[word] = 0;
+            }
+            counts[3 * chunk] = nodes;
+            counts[3 * chunk + 1] = edges;
+            counts[3 * chunk + 2] = filledEdges;
+        });
+
+        final long[] total = new long[3];
+        for (int chunk = 0; chunk < counts.length; chunk += 3) {
+            total[0] += counts[chunk];
+            total[1] += counts[chunk + 1];
+            total[2] += counts[chunk + 2];
+        }
 
-                queue = nextQueue;
+        return total;
+    }
+
+    private void forEachChunk(NodeRange range) {
+        if (pool == null) {
+            for (int chunk = 0; chunk + 1 < chunkStarts.length; chunk++) {
+                range.run(chunk, chunkStarts[chunk], chunkStarts[chunk + 1]);
             }
+            return;
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<>(chunkStarts.length - 1);
+        for (int chunk = 0; chunk + 1 < chunkStarts.length; chunk++) {
+            final int index = chunk;
+            final int from = chunkStarts[chunk];
+            final int to = chunkStarts[chunk + 1];
 
-            System.out.println("-1 -1");
+            tasks.add(() -> {
+                range.run(index, from, to);
+                return null;
+            });
+        }
+
+        try {
+            for (final Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
         }
     }
 
     public static void main(String[] args) throws IOException {
-        final ClosestBlackNode closestBlackNode = new ClosestBlackNode();
+        final Options options = Options.parse(args);
+
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            final ClosestBlackNode closestBlackNode = new ClosestBlackNode(options, reader);
+
+            if (options.dynamic) {
+                closestBlackNode.serve(reader);
+            } else {
+                closestBlackNode.process();
+            }
+        }
+    }
+
+    private interface NodeRange {
+
+        void run(int chunk, int from, int to);
+
+    }
+
+    /**
+     * Growable list of node ids.
+     */
+    private static final class NodeBuffer {
+
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+    }
+
+    private static final class Options {
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int nearest = 1;
+        int horizon = MAX_DISTANCE;
+        boolean stats;
+        boolean dynamic;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        options.threads = Integer.parseInt(value(args, ++i));
+                        if (options.threads < 1) {
+                            throw new IllegalArgumentException("Thread count must be positive: " + options.threads);
+                        }
+                        break;
+                    case "--nearest":
+                        options.nearest = Integer.parseInt(value(args, ++i));
+                        if (options.nearest < 1) {
+                            throw new IllegalArgumentException("Label count must be positive: " + options.nearest);
+                        }
+                        break;
+                    case "--horizon":
+                        options.horizon = Integer.parseInt(value(args, ++i));
+                        if (options.horizon < 0) {
+                            throw new IllegalArgumentException("Horizon must not be negative: " + options.horizon);
+                        }
+                        break;
+                    case "--stats":
+                        options.stats = true;
+                        break;
+                    case "--dynamic":
+                        options.dynamic = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                }
+            }
+
+            if (options.dynamic && options.nearest > 1) {
+                throw new IllegalArgumentException("--dynamic cannot be combined with --nearest");
+            }
+
+            return options;
+        }
+
+        private static String value(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+            }
+
+            return args[i];
+        }
 
-        closestBlackNode.process();
     }
 
 }
@@ -1,42 +1,94 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.stream.Collectors;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 public class NodeRank {
 
-    private final Integer n;
-    private final Double beta;
-    private final Double initialR;
-    private final Double teleportation;
+    private final int n;
+    private final double beta;
+    private final double initialR;
+    private final double teleportation;
 
-    private final List<List<Integer>> neighbors;
+    private final Graph graph;
     private final List<Query> queries;
+    private final List<EdgeUpdate> updates = new ArrayList<>();
 
-    private final List<double[]> iterationCache = new ArrayList<>();
+    private final int threads;
+    private final boolean stats;
 
-    public NodeRank() throws IOException {
-        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
-            // parse first line
-            final String[] firstLine = reader.readLine().trim().split(" ");
-            n = Integer.parseInt(firstLine[0]);
-            beta = Double.parseDouble(firstLine[1]);
-            initialR = 1.0 / n;
-            teleportation = (1 - beta) / n;
+    /**
+     * Convergence mode when positive: iterate until the L1 change of the ranks drops below it and answer every
+     * query from the converged ranks.
+     */
+    private final double epsilon;
+    private final int maxIterations;
+    private final boolean gaussSeidel;
+    private final double pushTolerance;
 
-            // parse adjacency matrix
-            neighbors = new ArrayList<>(n);
-            for (int i = 0; i < n; i++) {
-                final List<Integer> row = Arrays.stream(reader.readLine().trim().split(" "))
-                    .map(Integer::parseInt)
-                    .collect(Collectors.toList());
+    /**
+     * Random walks stored per node for personalized queries, and the seed of their generator.
+     */
+    private final int walks;
+    private final long seed;
+
+    /**
+     * First node of every chunk of the parallel iteration, followed by {@code n}.
+     */
+    private final int[] chunkStarts;
+    private ForkJoinPool pool;
 
-                neighbors.add(row);
+    private int iterations;
+    private long iterationNanos;
+
+    public NodeRank(Options options) throws IOException {
+        threads = options.threads;
+        stats = options.stats;
+        epsilon = options.epsilon;
+        maxIterations = options.maxIterations;
+        gaussSeidel = options.gaussSeidel;
+        pushTolerance = options.pushTolerance;
+        walks = options.walks;
+        seed = options.seed;
+
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            if (options.graph != null) {
+                // the binary graph replaces the first line and the adjacency lists, the input holds only the queries
+                final MappedGraph mapped = MappedGraph.open(options.graph);
+                n = mapped.nodes;
+                beta = mapped.beta;
+                graph = mapped;
+            } else {
+                // parse first line
+                final String[] firstLine = reader.readLine().trim().split(" ");
+                n = Integer.parseInt(firstLine[0]);
+                beta = Double.parseDouble(firstLine[1]);
+
+                // parse adjacency lists
+                graph = HeapGraph.read(reader, n);
             }
+            initialR = 1.0 / n;
+            teleportation = (1 - beta) / n;
+            chunkStarts = graph.chunks(threads == 1 ? 1 : threads * 4);
 
             final int numberOfQueries = Integer.parseInt(reader.readLine());
 
@@ -44,62 +96,652 @@ public class NodeRank {
             queries = new ArrayList<>(numberOfQueries);
             for (int i = 0; i < numberOfQueries; i++) {
                 final String[] queryParts = reader.readLine().trim().split(" ");
-                queries.add(new Query(Integer.parseInt(queryParts[0]), Integer.parseInt(queryParts[1])));
+                if ("add".equals(queryParts[0]) || "remove".equals(queryParts[0])) {
+                    updates.add(new EdgeUpdate(queries.size(), "add".equals(queryParts[0]),
+                        checkNode(Integer.parseInt(queryParts[1])), checkNode(Integer.parseInt(queryParts[2]))));
+                    continue;
+                }
+                if ("ppr".equals(queryParts[0])) {
+                    final int[] seeds = Arrays.stream(queryParts, 2, queryParts.length)
+                        .mapToInt(Integer::parseInt)
+                        .toArray();
+                    if (seeds.length == 0) {
+                        throw new IllegalArgumentException("Personalized query without seeds on query " + (i + 1));
+                    }
+                    for (final int node : seeds) {
+                        checkNode(node);
+                    }
+                    queries.add(new Query(checkNode(Integer.parseInt(queryParts[1])), seeds));
+                    continue;
+                }
+
+                final Query query = new Query(checkNode(Integer.parseInt(queryParts[0])),
+                    Integer.parseInt(queryParts[1]));
+                if (query.numberOfIterations < 0) {
+                    throw new IllegalArgumentException("Negative iteration count: " + query.numberOfIterations);
+                }
+                queries.add(query);
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            if (epsilon == 0) {
+                throw new IllegalArgumentException("Edge updates require --epsilon");
+            }
+            if (queries.stream().anyMatch(query -> query.seeds != null)) {
+                throw new IllegalArgumentException("Edge updates cannot be combined with personalized queries");
             }
         }
     }
 
+    private int checkNode(int node) {
+        if (node < 0 || node >= n) {
+            throw new IllegalArgumentException("Node out of range: " + node);
+        }
+
+        return node;
+    }
+
     public void processQueries() {
+        if (threads > 1) {
+            pool = new ForkJoinPool(threads);
+        }
+
+        final double[] results = new double[queries.size()];
+        try {
+            if (epsilon > 0) {
+                converge(results);
+            } else {
+                sweep(results);
+            }
+            personalize(results);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        try {
+            for (final double result : results) {
+                out.println(formatResult(result));
+            }
+        } finally {
+            out.flush();
+        }
+
+        if (stats) {
+            System.err.println(String.format(Locale.US, "%d iterations in %d ms on %d threads", iterations,
+                iterationNanos / 1_000_000, threads));
+        }
+    }
+
+    /**
+     * Answers all queries in one forward sweep over the iterations: queries are ordered by their iteration count
+     * and answered as soon as the sweep reaches it, so only two rank vectors are ever alive. Results are stored at
+     * the query indexes.
+     */
+    private void sweep(double[] results) {
+        final long[] order = IntStream.range(0, queries.size())
+            .filter(q -> queries.get(q).seeds == null)
+            .mapToLong(q -> ((long) queries.get(q).numberOfIterations << 32) | q)
+            .sorted()
+            .toArray();
+
+        double[] oldR = new double[n];
+        Arrays.fill(oldR, initialR);
+        double[] newR = new double[n];
+        int iteration = 0;
+
+        for (final long key : order) {
+            final Query query = queries.get((int) key);
+
+            for (; iteration < query.numberOfIterations; iteration++) {
+                // the ranks are not needed once the coefficients are known, so they share the array
+                calculateNextR(oldR, oldR, newR);
+
+                final double[] swap = oldR;
+                oldR = newR;
+                newR = swap;
+            }
+
+            results[(int) key] = oldR[query.node];
+        }
+    }
+
+    /**
+     * Iterates until the L1 change of the ranks drops below {@code epsilon} or {@link #maxIterations} is reached,
+     * with Jacobi steps or, with {@code --gauss-seidel}, in place steps that use every new rank as soon as it is
+     * known. The iteration count and the last residual go to stderr. Queries are answered from the final ranks; their
+     * iteration counts are ignored. Edge updates between the queries are applied to the final ranks with
+     * {@link IncrementalRank}.
+     */
+    private void converge(double[] results) {
+        double[] oldR = new double[n];
+        Arrays.fill(oldR, initialR);
+        double[] newR = new double[n];
+        final double[] coefficients = gaussSeidel ? null : new double[n];
+
+        double residual = Double.POSITIVE_INFINITY;
+        int iteration = 0;
+        while (iteration < maxIterations && residual >= epsilon) {
+            if (gaussSeidel) {
+                residual = gaussSeidelStep(oldR, newR);
+            } else {
+                calculateNextR(oldR, coefficients, newR);
+
+                residual = 0.0;
+                for (int i = 0; i < n; i++) {
+                    residual += Math.abs(newR[i] - oldR[i]);
+                }
+
+                final double[] swap = oldR;
+                oldR = newR;
+                newR = swap;
+            }
+            iteration++;
+        }
+
+        System.err.println(String.format(Locale.US, "%s after %d iterations, L1 residual %.3e",
+            residual < epsilon ? "converged" : "stopped", iteration, residual));
+
+        IncrementalRank incremental = null;
+        int update = 0;
+        for (int q = 0; q < results.length; q++) {
+            for (; update < updates.size() && updates.get(update).position == q; update++) {
+                if (incremental == null) {
+                    incremental = new IncrementalRank(oldR);
+                }
+                incremental.apply(updates.get(update));
+            }
+
+            if (queries.get(q).seeds == null) {
+                final int node = queries.get(q).node;
+                results[q] = incremental == null ? oldR[node] : incremental.rank(node);
+            }
+        }
+
+        if (stats && incremental != null) {
+            System.err.println(String.format(Locale.US, "%d edge updates, %d pushes, %d per update against %d node " +
+                "updates of a full recompute", update, incremental.pushes, incremental.pushes / update,
+                (long) iteration * n));
+        }
+    }
+
+    /**
+     * Ranks kept up to date under edge updates by local pushes. It works on the unnormalized system
+     * {@code y = beta * P'^T y + (1 - beta) / n}, where {@code P'} has empty rows for dangling nodes; its solution is
+     * the rank vector up to a constant factor, so no update touches every node. Every node has a residual, the
+     * amount by which its equation is off. Pushing a node adds its residual to {@code y} and spreads
+     * {@code beta / outDegree} of it to its out-neighbors. Changing the edges of {@code u} only changes the
+     * residuals of its old and new out-neighbors, so the work of an update is proportional to the rank mass that
+     * moves, not to the size of the graph. Every update has its own budget: it may leave the L1 norm of the residuals
+     * at most {@code --push-tolerance} times the rank mass above where it found it. The default of
+     * {@code epsilon / 10} keeps ten updates within the criterion the iteration stopped on.
+     * Pushing starts with the residuals above a quarter of the moved rank and halves that threshold while the budget
+     * is exceeded, so the large residuals go first and the small ones only when they matter. The residuals left by
+     * the iteration are not pushed on their own.
+     */
+    private final class IncrementalRank {
+
+        private final double[] y = new double[n];
+        private final double[] residuals = new double[n];
+        private final double budget = pushTolerance > 0 ? pushTolerance : epsilon / 10;
+        private double sum;
+
+        /**
+         * L1 norm of the residuals, kept up to date by {@link #addResidual(int, double)} and recomputed every
+         * {@code n} pushes so that rounding does not pile up.
+         */
+        private double residualMass;
+        private int pushesSinceRecount;
+
+        /**
+         * Residual norm at which the current update stops, and the residual a node needs to be queued.
+         */
+        private double bound;
+        private double tolerance;
+
+        /**
+         * Nodes whose residual the current update changed, offered again whenever the tolerance is halved.
+         */
+        private final int[] touched = new int[n];
+        private final boolean[] isTouched = new boolean[n];
+        private int touchedSize;
+
+        /**
+         * Out-neighbors of the nodes whose edges were updated, {@code null} for the others.
+         */
+        private final int[][] adjacency = new int[n][];
+
+        private final int[] queue = new int[n];
+        private final boolean[] queued = new boolean[n];
+        private int head;
+        private int size;
+
+        long pushes;
+
+        IncrementalRank(double[] ranks) {
+            // scale the ranks to the solution of the unnormalized system
+            double danglingMass = 0.0;
+            for (final int node : graph.dangling) {
+                danglingMass += ranks[node];
+            }
+            final double scale = (1 - beta) / (beta * danglingMass + 1 - beta);
+
+            for (int i = 0; i < n; i++) {
+                y[i] = ranks[i] * scale;
+                sum += y[i];
+            }
+
+            for (int j = 0; j < n; j++) {
+                double residual = teleportation - y[j];
+                for (long e = graph.firstIn(j), end = graph.firstIn(j + 1); e < end; e++) {
+                    final int source = graph.source(e);
+                    residual += beta * y[source] / graph.outDegree(source);
+                }
+                residuals[j] = residual;
+                residualMass += Math.abs(residual);
+            }
+        }
+
+        double rank(int node) {
+            return y[node] / sum;
+        }
+
+        void apply(EdgeUpdate update) {
+            final int source = update.source;
+            final int[] targets = targets(source);
+
+            final int[] changed;
+            if (update.add) {
+                changed = Arrays.copyOf(targets, targets.length + 1);
+                changed[targets.length] = update.target;
+            } else {
+                int position = 0;
+                while (position < targets.length && targets[position] != update.target) {
+                    position++;
+                }
+                if (position == targets.length) {
+                    throw new IllegalArgumentException("No edge " + source + " -> " + update.target);
+                }
+
+                changed = new int[targets.length - 1];
+                System.arraycopy(targets, 0, changed, 0, position);
+                System.arraycopy(targets, position + 1, changed, position, changed.length - position);
+            }
+
+            bound = residualMass + budget * sum;
+            tolerance = beta * y[source] / 4;
+
+            // take back what the source gave to its old out-neighbors and give it to the new ones
+            for (final int target : targets) {
+                addResidual(target, -beta * y[source] / targets.length);
+            }
+            for (final int target : changed) {
+                addResidual(target, beta * y[source] / changed.length);
+            }
+            adjacency[source] = changed;
+
+            for (final int target : targets) {
+                offer(target);
+            }
+            offer(update.target);
+            push();
+
+            final double floor = budget * sum / n;
+            while (residualMass > bound && tolerance > floor) {
+                tolerance /= 2;
+                for (int k = 0; k < touchedSize; k++) {
+                    offer(touched[k]);
+                }
+                push();
+            }
+
+            for (int k = 0; k < touchedSize; k++) {
+                isTouched[touched[k]] = false;
+            }
+            touchedSize = 0;
+        }
+
+        private int[] targets(int node) {
+            if (adjacency[node] != null) {
+                return adjacency[node];
+            }
+
+            final int[] targets = new int[graph.outDegree(node)];
+            for (int k = 0; k < targets.length; k++) {
+                targets[k] = graph.target(graph.firstOut(node) + k);
+            }
+
+            return targets;
+        }
+
+        private void push() {
+            while (size > 0 && residualMass > bound) {
+                final int node = queue[head];
+                head = (head + 1) % n;
+                size--;
+                queued[node] = false;
+
+                final double residual = residuals[node];
+                y[node] += residual;
+                sum += residual;
+                addResidual(node, -residual);
+                pushes++;
+                if (++pushesSinceRecount == n) {
+                    recount();
+                }
+
+                final int degree = adjacency[node] != null ? adjacency[node].length : graph.outDegree(node);
+                if (degree == 0) {
+                    continue;
+                }
+
+                final double share = beta * residual / degree;
+                final long first = graph.firstOut(node);
+                for (int k = 0; k < degree; k++) {
+                    final int target = adjacency[node] != null ? adjacency[node][k] : graph.target(first + k);
+                    addResidual(target, share);
+                    offer(target);
+                }
+            }
+        }
+
+        private void addResidual(int node, double delta) {
+            final double residual = residuals[node];
+            residuals[node] = residual + delta;
+            residualMass += Math.abs(residual + delta) - Math.abs(residual);
+
+            if (!isTouched[node]) {
+                isTouched[node] = true;
+                touched[touchedSize++] = node;
+            }
+        }
+
+        private void recount() {
+            pushesSinceRecount = 0;
+            residualMass = 0.0;
+            for (final double residual : residuals) {
+                residualMass += Math.abs(residual);
+            }
+        }
+
+        private void offer(int node) {
+            if (!queued[node] && Math.abs(residuals[node]) > tolerance) {
+                queue[(head + size) % n] = node;
+                queued[node] = true;
+                size++;
+            }
+        }
+
+    }
+
+    /**
+     * Answers the personalized queries from random walks, which are only generated from the out-neighbors of the
+     * seeds. A walk stops with probability {@code 1 - beta} before every step; a walk that would step on from a
+     * dangling node restarts from the seed set instead, the same rule by which the global ranks spread the rank of
+     * dangling nodes over all nodes. The stored walks cannot know the seed set, so they end in a restart marker
+     * there. For a seed {@code s} the first step is taken exactly and the stored walks of its out-neighbors are
+     * stitched onto it, which averages {@code outDegree(s)} times more walks than the seed's own:
+     * {@code a_s(v) = (1 - beta) [s = v] + beta / outDegree(s) * sum of a_u(v) over the out-neighbors u}, and
+     * likewise for the restart share {@code d_s}; a dangling seed has {@code a_s(v) = (1 - beta) [s = v]} and
+     * {@code d_s = beta}. With {@code a} and {@code d} the means over the seed set, the restarts form a geometric
+     * series and {@code ppr(v) = a(v) / (1 - d)}. With every node as a seed it is the global rank.
+     */
+    private void personalize(double[] results) {
+        if (queries.stream().allMatch(query -> query.seeds == null)) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final WalkIndex index = new WalkIndex(walks);
         for (final Query query : queries) {
-            final double result = processQuery(query);
+            if (query.seeds == null) {
+                continue;
+            }
 
-            System.out.println(formatResult(result));
+            for (final int source : query.seeds) {
+                for (long e = graph.firstOut(source), end = graph.firstOut(source + 1); e < end; e++) {
+                    index.require(graph.target(e));
+                }
+            }
+        }
+        forEachChunk((from, to) -> index.generate(from, to));
+
+        for (int q = 0; q < results.length; q++) {
+            final Query query = queries.get(q);
+            if (query.seeds == null) {
+                continue;
+            }
+
+            double ends = 0.0;
+            double restarts = 0.0;
+            for (final int source : query.seeds) {
+                ends += source == query.node ? 1 - beta : 0.0;
+
+                final int degree = graph.outDegree(source);
+                if (degree == 0) {
+                    restarts += beta;
+                    continue;
+                }
+
+                double neighborEnds = 0.0;
+                double neighborRestarts = 0.0;
+                for (long e = graph.firstOut(source), end = graph.firstOut(source + 1); e < end; e++) {
+                    neighborEnds += index.estimate(graph.target(e), query.node);
+                    neighborRestarts += index.estimate(graph.target(e), WalkIndex.RESTART);
+                }
+                ends += beta * neighborEnds / degree;
+                restarts += beta * neighborRestarts / degree;
+            }
+            results[q] = ends / (query.seeds.length - restarts);
+        }
+
+        if (stats) {
+            System.err.println(String.format(Locale.US, "%d walks from each of %d nodes, personalized queries in %d ms",
+                walks, index.sources(), (System.nanoTime() - start) / 1_000_000));
         }
     }
 
-    private double processQuery(final Query query) {
-        if (query.numberOfIterations <= iterationCache.size() - 1) {
-            return iterationCache.get(query.numberOfIterations)[query.node];
+    /**
+     * End nodes of {@code walks} random walks from the required nodes, one sorted array per node so that counting
+     * the walks that end in a node is a binary search and no array grows with {@code n * walks}. Walks that have to
+     * restart from the seed set end in {@link #RESTART}.
+     */
+    private final class WalkIndex {
+
+        static final int RESTART = -1;
+
+        private final int walks;
+        private final boolean[] required = new boolean[n];
+        private final int[][] ends = new int[n][];
+
+        WalkIndex(int walks) {
+            this.walks = walks;
+        }
+
+        void require(int node) {
+            required[node] = true;
+        }
+
+        /**
+         * Number of nodes walks were generated from.
+         */
+        int sources() {
+            int count = 0;
+            for (final int[] nodeEnds : ends) {
+                if (nodeEnds != null) {
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        /**
+         * Walks from the required nodes in {@code [from, to)}. Every node has its own generator, so the walks do not
+         * depend on the number of threads or on which other nodes are required.
+         */
+        void generate(int from, int to) {
+            for (int node = from; node < to; node++) {
+                if (!required[node]) {
+                    continue;
+                }
+
+                final SplittableRandom random = new SplittableRandom(seed + node * 0x9E3779B97F4A7C15L);
+                final int[] nodeEnds = new int[walks];
+
+                for (int walk = 0; walk < walks; walk++) {
+                    int current = node;
+                    while (current != RESTART && random.nextDouble() < beta) {
+                        final int degree = graph.outDegree(current);
+                        if (degree == 0) {
+                            current = RESTART;
+                        } else {
+                            current = graph.target(graph.firstOut(current) + random.nextInt(degree));
+                        }
+                    }
+                    nodeEnds[walk] = current;
+                }
+
+                Arrays.sort(nodeEnds);
+                ends[node] = nodeEnds;
+            }
+        }
+
+        /**
+         * Share of the walks from {@code source} that end in {@code target}, or restart for {@link #RESTART}.
+         */
+        double estimate(int source, int target) {
+            final int[] nodeEnds = ends[source];
+            final int first = lowerBound(nodeEnds, 0, walks, target);
+            final int last = lowerBound(nodeEnds, first, walks, target + 1);
+
+            return (double) (last - first) / walks;
         }
 
-        double[] oldR = getInitialR();
+        private int lowerBound(int[] nodeEnds, int from, int to, int value) {
+            while (from < to) {
+                final int middle = (from + to) >>> 1;
+                if (nodeEnds[middle] < value) {
+                    from = middle + 1;
+                } else {
+                    to = middle;
+                }
+            }
 
-        for (int iteration = iterationCache.size() - 1; iteration < query.numberOfIterations; iteration++) {
-            final double[] newR = calculateNextR(oldR);
-            iterationCache.add(newR);
-            oldR = newR;
+            return from;
         }
 
-        return oldR[query.node];
     }
 
-    private double[] getInitialR() {
-        if (!iterationCache.isEmpty()) {
-            return iterationCache.get(iterationCache.size() - 1);
+    /**
+     * One Gauss-Seidel step over {@code r} in node order, followed by rescaling the ranks to sum to 1. It is
+     * sequential by nature, so it ignores {@code --threads}. The share of the dangling nodes is taken from the ranks
+     * before the step. {@code previous} receives those ranks. Returns the L1 change of the rescaled ranks.
+     */
+    private double gaussSeidelStep(double[] r, double[] previous) {
+        final long start = System.nanoTime();
+        System.arraycopy(r, 0, previous, 0, n);
+        final double base = teleportation + danglingShare(r);
+
+        for (int j = 0; j < n; j++) {
+            double rank = base;
+            for (long e = graph.firstIn(j), end = graph.firstIn(j + 1); e < end; e++) {
+                final int source = graph.source(e);
+                rank += beta * (r[source] / graph.outDegree(source));
+            }
+            r[j] = rank;
+        }
+
+        final double sum = Arrays.stream(r).sum();
+        double change = 0.0;
+        for (int j = 0; j < n; j++) {
+            r[j] /= sum;
+            change += Math.abs(r[j] - previous[j]);
         }
 
-        final double[] oldR = new double[n];
-        for (int i = 0; i < n; i++) {
-            oldR[i] = initialR;
+        iterations++;
+        iterationNanos += System.nanoTime() - start;
+
+        return change;
+    }
+
+    /**
+     * Rank every node receives from the dangling nodes, which spread their rank over all nodes instead of losing it.
+     */
+    private double danglingShare(double[] r) {
+        double mass = 0.0;
+        for (final int node : graph.dangling) {
+            mass += r[node];
         }
-        iterationCache.add(oldR);
 
-        return oldR;
+        return beta * mass / n;
     }
 
-    private double[] calculateNextR(double[] oldR) {
-        final double[] newR = new double[n];
-        Arrays.fill(newR, teleportation);
+    /**
+     * One power iteration from {@code oldR} into {@code newR}, pulling the rank of every node from its in-neighbors.
+     * The in-neighbors are visited in ascending source order, so every sum is accumulated in the same order as when
+     * pushing from the sources. Nodes are split into chunks that are updated in parallel; every rank is still summed
+     * by a single thread, so the result does not depend on the number of threads. {@code coefficients} may be
+     * {@code oldR} itself, which is then overwritten.
+     */
+    private void calculateNextR(double[] oldR, double[] coefficients, double[] newR) {
+        final long start = System.nanoTime();
+        final double base = teleportation + danglingShare(oldR);
 
-        for (int i = 0; i < n; i++) {
-            final double coefficient = oldR[i] / neighbors.get(i).size();
+        forEachChunk((from, to) -> {
+            for (int i = from; i < to; i++) {
+                final int degree = graph.outDegree(i);
+                coefficients[i] = degree == 0 ? 0.0 : oldR[i] / degree;
+            }
+        });
 
-            for (final int j : neighbors.get(i)) {
-                newR[j] += beta * coefficient;
+        forEachChunk((from, to) -> {
+            for (int j = from; j < to; j++) {
+                double rank = base;
+                for (long e = graph.firstIn(j), end = graph.firstIn(j + 1); e < end; e++) {
+                    rank += beta * coefficients[graph.source(e)];
+                }
+                newR[j] = rank;
             }
+        });
+
+        iterations++;
+        iterationNanos += System.nanoTime() - start;
+    }
+
+    private void forEachChunk(NodeRange range) {
+        if (pool == null) {
+            range.run(0, n);
+            return;
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<>(chunkStarts.length - 1);
+        for (int chunk = 0; chunk + 1 < chunkStarts.length; chunk++) {
+            final int from = chunkStarts[chunk];
+            final int to = chunkStarts[chunk + 1];
+
+            tasks.add(() -> {
+                range.run(from, to);
+                return null;
+            });
         }
 
-        return newR;
+        try {
+            for (final Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
     private static String formatResult(Double result) {
@@ -107,19 +749,557 @@ public class NodeRank {
     }
 
     public static void main(String[] args) throws IOException {
-        final NodeRank nodeRank = new NodeRank();
+        final Options options = Options.parse(args);
+
+        if (options.convert != null) {
+            convert(options.convert);
+            return;
+        }
+
+        final NodeRank nodeRank = new NodeRank(options);
 
         nodeRank.processQueries();
     }
 
+    /**
+     * Writes the graph of the input to a binary file for {@code --graph} without holding it in memory. The queries
+     * of the input are not read.
+     */
+    private static void convert(Path path) throws IOException {
+        final long start = System.nanoTime();
+
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            final String[] firstLine = reader.readLine().trim().split(" ");
+            final int n = Integer.parseInt(firstLine[0]);
+            final double beta = Double.parseDouble(firstLine[1]);
+
+            final long edges = MappedGraph.write(path, reader, n, beta);
+
+            System.err.println(String.format(Locale.US, "graph: %d nodes, %d edges, %d bytes in %d ms", n, edges,
+                Files.size(path), (System.nanoTime() - start) / 1_000_000));
+        }
+    }
+
+    /**
+     * Directed graph in compressed sparse row form: the out-neighbors of node {@code i} are the targets of the edges
+     * {@code [firstOut(i), firstOut(i + 1))} in input order, the in-neighbors of node {@code j} are the sources of the
+     * edges {@code [firstIn(j), firstIn(j + 1))} in ascending order. Repeated edges are kept.
+     */
+    private abstract static class Graph {
+
+        final int nodes;
+
+        /**
+         * Nodes without out-neighbors, in ascending order.
+         */
+        final int[] dangling;
+
+        Graph(int nodes, int[] dangling) {
+            this.nodes = nodes;
+            this.dangling = dangling;
+        }
+
+        abstract long firstOut(int node);
+
+        abstract int target(long edge);
+
+        abstract long firstIn(int node);
+
+        abstract int source(long edge);
+
+        int outDegree(int node) {
+            return (int) (firstOut(node + 1) - firstOut(node));
+        }
+
+        /**
+         * Splits the nodes into at most {@code count} ranges of about the same number of nodes plus in-edges and
+         * returns the first node of every range followed by the node count.
+         */
+        int[] chunks(int count) {
+            final long work = nodes + firstIn(nodes);
+
+            final int[] starts = new int[count + 1];
+            int size = 1;
+            for (int j = 0; j < nodes && size < count; j++) {
+                if (j + firstIn(j) >= work * size / count) {
+                    if (j > starts[size - 1]) {
+                        starts[size++] = j;
+                    }
+                }
+            }
+            starts[size++] = nodes;
+
+            return Arrays.copyOf(starts, size);
+        }
+
+        /**
+         * Parses one line of space separated out-neighbors into {@code into}.
+         */
+        static void parseLine(String line, int n, int lineNumber, NodeBuffer into) {
+            int value = -1;
+            for (int c = 0, length = line.length(); c <= length; c++) {
+                final char ch = c < length ? line.charAt(c) : ' ';
+                if (ch >= '0' && ch <= '9') {
+                    value = (value < 0 ? 0 : value * 10) + (ch - '0');
+                } else if (Character.isWhitespace(ch)) {
+                    if (value >= 0) {
+                        if (value >= n) {
+                            throw new IllegalArgumentException("Node out of range on line " + lineNumber + ": " +
+                                value);
+                        }
+                        into.add(value);
+                        value = -1;
+                    }
+                } else {
+                    throw new NumberFormatException("Unexpected character '" + ch + "' on line " + lineNumber);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Growable list of node ids.
+     */
+    private static final class NodeBuffer {
+
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+    }
+
+    /**
+     * Graph held in {@code int} arrays on the heap.
+     */
+    private static final class HeapGraph extends Graph {
+
+        private final int[] offsets;
+        private final int[] targets;
+        private final int[] inOffsets;
+        private final int[] sources;
+
+        private HeapGraph(int[] offsets, int[] targets) {
+            super(offsets.length - 1, IntStream.range(0, offsets.length - 1)
+                .filter(i -> offsets[i] == offsets[i + 1])
+                .toArray());
+            final int n = nodes;
+            this.offsets = offsets;
+            this.targets = targets;
+
+            // transpose with a counting sort, which keeps the sources of every target ascending
+            inOffsets = new int[n + 1];
+            for (final int target : targets) {
+                inOffsets[target + 1]++;
+            }
+            for (int j = 0; j < n; j++) {
+                inOffsets[j + 1] += inOffsets[j];
+            }
+
+            sources = new int[targets.length];
+            final int[] next = Arrays.copyOf(inOffsets, n);
+            for (int i = 0; i < n; i++) {
+                for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                    sources[next[targets[e]]++] = i;
+                }
+            }
+        }
+
+        /**
+         * Reads {@code n} lines of space separated out-neighbors.
+         */
+        static HeapGraph read(BufferedReader reader, int n) throws IOException {
+            final int[] offsets = new int[n + 1];
+            final NodeBuffer targets = new NodeBuffer();
+
+            for (int i = 0; i < n; i++) {
+                parseLine(reader.readLine(), n, i + 2, targets);
+                offsets[i + 1] = targets.size;
+            }
+
+            return new HeapGraph(offsets, Arrays.copyOf(targets.values, targets.size));
+        }
+
+        @Override
+        long firstOut(int node) {
+            return offsets[node];
+        }
+
+        @Override
+        int target(long edge) {
+            return targets[(int) edge];
+        }
+
+        @Override
+        long firstIn(int node) {
+            return inOffsets[node];
+        }
+
+        @Override
+        int source(long edge) {
+            return sources[(int) edge];
+        }
+
+    }
+
+    /**
+     * Graph read from a memory mapped binary file, so that only the rank vectors have to fit into the heap. The
+     * file starts with a header ({@link #MAGIC}, node count, beta, edge count) followed by the out-edge offsets, the
+     * in-edge offsets, the targets and the sources. All numbers are big endian and aligned to their size.
+     */
+    private static final class MappedGraph extends Graph {
+
+        private static final int MAGIC = 0x4E524731;
+        private static final int HEADER_SIZE = 24;
+
+        final double beta;
+
+        private final MappedFile file;
+        private final long offsets;
+        private final long inOffsets;
+        private final long targets;
+        private final long sources;
+
+        private MappedGraph(MappedFile file, int nodes, double beta, int[] dangling) {
+            super(nodes, dangling);
+            this.beta = beta;
+            this.file = file;
+            this.offsets = HEADER_SIZE;
+            this.inOffsets = offsets + (nodes + 1L) * Long.BYTES;
+            this.targets = inOffsets + (nodes + 1L) * Long.BYTES;
+            this.sources = sourcesOffset(nodes, file.getLong(16));
+        }
+
+        private static long sourcesOffset(int nodes, long edges) {
+            final long targets = HEADER_SIZE + 2 * (nodes + 1L) * Long.BYTES;
+            return (targets + edges * Integer.BYTES + 7) & ~7L;
+        }
+
+        static MappedGraph open(Path path) throws IOException {
+            final MappedFile file;
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                file = new MappedFile(channel, FileChannel.MapMode.READ_ONLY, channel.size());
+            }
+            if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+                throw new IOException("Not a graph file: " + path);
+            }
+
+            final int nodes = file.getInt(4);
+            final long edges = file.getLong(16);
+            if (file.size() != sourcesOffset(nodes, edges) + edges * Integer.BYTES) {
+                throw new IOException("Truncated graph file: " + path);
+            }
+
+            final NodeBuffer dangling = new NodeBuffer();
+            for (int i = 0; i < nodes; i++) {
+                final long offset = HEADER_SIZE + (long) i * Long.BYTES;
+                if (file.getLong(offset) == file.getLong(offset + Long.BYTES)) {
+                    dangling.add(i);
+                }
+            }
+
+            return new MappedGraph(file, nodes, file.getDouble(8), Arrays.copyOf(dangling.values, dangling.size));
+        }
+
+        /**
+         * Streams {@code n} adjacency lines into a graph file and returns the number of edges. The targets are
+         * written while reading; the sources are then scattered through a writable mapping. Only the offsets are
+         * kept in memory.
+         */
+        static long write(Path path, BufferedReader reader, int n, double beta) throws IOException {
+            final long targetsOffset = HEADER_SIZE + 2 * (n + 1L) * Long.BYTES;
+            final long[] offsets = new long[n + 1];
+            final long[] inOffsets = new long[n + 1];
+
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                final NodeBuffer line = new NodeBuffer();
+                long position = targetsOffset;
+
+                for (int i = 0; i < n; i++) {
+                    line.size = 0;
+                    parseLine(reader.readLine(), n, i + 2, line);
+
+                    for (int v = 0; v < line.size; v++) {
+                        if (!buffer.hasRemaining()) {
+                            position = flush(channel, buffer, position);
+                        }
+                        buffer.putInt(line.values[v]);
+                        inOffsets[line.values[v] + 1]++;
+                    }
+                    offsets[i + 1] = offsets[i] + line.size;
+                }
+                flush(channel, buffer, position);
+
+                final long edges = offsets[n];
+                for (int j = 0; j < n; j++) {
+                    inOffsets[j + 1] += inOffsets[j];
+                }
+
+                final long sourcesOffset = sourcesOffset(n, edges);
+                final MappedFile file = new MappedFile(channel, FileChannel.MapMode.READ_WRITE,
+                    sourcesOffset + edges * Integer.BYTES);
+
+                file.putInt(0, MAGIC);
+                file.putInt(4, n);
+                file.putDouble(8, beta);
+                file.putLong(16, edges);
+                for (int i = 0; i <= n; i++) {
+                    file.putLong(HEADER_SIZE + (long) i * Long.BYTES, offsets[i]);
+                    file.putLong(HEADER_SIZE + (n + 1L + i) * Long.BYTES, inOffsets[i]);
+                }
+
+                // scatter the sources in ascending order; offsets now serves as the next free slot of every target
+                System.arraycopy(inOffsets, 0, offsets, 0, n + 1);
+                long edge = 0;
+                for (int i = 0; i < n; i++) {
+                    final long end = file.getLong(HEADER_SIZE + (i + 1L) * Long.BYTES);
+                    for (; edge < end; edge++) {
+                        final int target = file.getInt(targetsOffset + edge * Integer.BYTES);
+                        file.putInt(sourcesOffset + offsets[target]++ * Integer.BYTES, i);
+                    }
+                }
+                file.force();
+
+                return edges;
+            }
+        }
+
+        private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+
+            return position;
+        }
+
+        @Override
+        long firstOut(int node) {
+            return file.getLong(offsets + (long) node * Long.BYTES);
+        }
+
+        @Override
+        int target(long edge) {
+            return file.getInt(targets + edge * Integer.BYTES);
+        }
+
+        @Override
+        long firstIn(int node) {
+            return file.getLong(inOffsets + (long) node * Long.BYTES);
+        }
+
+        @Override
+        int source(long edge) {
+            return file.getInt(sources + edge * Integer.BYTES);
+        }
+
+    }
+
+    /**
+     * Mapping of a file in windows of {@link #WINDOW_SIZE} bytes. Values must be aligned to their size, so none of
+     * them crosses a window boundary.
+     */
+    private static final class MappedFile {
+
+        private static final long WINDOW_SIZE = 1L << 30;
+
+        private final MappedByteBuffer[] windows;
+        private final long size;
+
+        MappedFile(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+            this.size = size;
+            windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            for (int w = 0; w < windows.length; w++) {
+                final long position = w * WINDOW_SIZE;
+                windows[w] = channel.map(mode, position, Math.min(WINDOW_SIZE, size - position));
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        int getInt(long offset) {
+            return windows[(int) (offset / WINDOW_SIZE)].getInt((int) (offset % WINDOW_SIZE));
+        }
+
+        long getLong(long offset) {
+            return windows[(int) (offset / WINDOW_SIZE)].getLong((int) (offset % WINDOW_SIZE));
+        }
+
+        double getDouble(long offset) {
+            return windows[(int) (offset / WINDOW_SIZE)].getDouble((int) (offset % WINDOW_SIZE));
+        }
+
+        void putInt(long offset, int value) {
+            windows[(int) (offset / WINDOW_SIZE)].putInt((int) (offset % WINDOW_SIZE), value);
+        }
+
+        void putLong(long offset, long value) {
+            windows[(int) (offset / WINDOW_SIZE)].putLong((int) (offset % WINDOW_SIZE), value);
+        }
+
+        void putDouble(long offset, double value) {
+            windows[(int) (offset / WINDOW_SIZE)].putDouble((int) (offset % WINDOW_SIZE), value);
+        }
+
+        void force() {
+            for (final MappedByteBuffer window : windows) {
+                window.force();
+            }
+        }
+
+    }
+
+    /**
+     * Work on the nodes {@code [from, to)}.
+     */
+    @FunctionalInterface
+    private interface NodeRange {
+
+        void run(int from, int to);
+
+    }
+
+    /**
+     * {@code add source target} or {@code remove source target}, applied before the query at {@code position}.
+     * Removing drops one of the edges if there are several.
+     */
+    private static class EdgeUpdate {
+
+        final int position;
+        final boolean add;
+        final int source;
+        final int target;
+
+        public EdgeUpdate(final int position, final boolean add, final int source, final int target) {
+            this.position = position;
+            this.add = add;
+            this.source = source;
+            this.target = target;
+        }
+
+    }
+
     private static class Query {
 
-        final Integer node;
-        final Integer numberOfIterations;
+        final int node;
+        final int numberOfIterations;
 
-        public Query(final Integer node, final Integer numberOfIterations) {
+        /**
+         * Seed nodes of a personalized query ({@code ppr node seed...}), or {@code null} for a global one.
+         */
+        final int[] seeds;
+
+        public Query(final int node, final int numberOfIterations) {
             this.node = node;
             this.numberOfIterations = numberOfIterations;
+            this.seeds = null;
+        }
+
+        public Query(final int node, final int[] seeds) {
+            this.node = node;
+            this.numberOfIterations = 0;
+            this.seeds = seeds;
+        }
+
+    }
+
+    private static final class Options {
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean stats;
+        double epsilon;
+        int maxIterations = 1000;
+        boolean gaussSeidel;
+        double pushTolerance;
+        int walks = 256;
+        long seed;
+        Path convert;
+        Path graph;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        options.threads = Integer.parseInt(value(args, ++i));
+                        if (options.threads < 1) {
+                            throw new IllegalArgumentException("Thread count must be positive: " + options.threads);
+                        }
+                        break;
+                    case "--stats":
+                        options.stats = true;
+                        break;
+                    case "--epsilon":
+                        options.epsilon = Double.parseDouble(value(args, ++i));
+                        if (!(options.epsilon > 0)) {
+                            throw new IllegalArgumentException("Epsilon must be positive: " + options.epsilon);
+                        }
+                        break;
+                    case "--max-iterations":
+                        options.maxIterations = Integer.parseInt(value(args, ++i));
+                        if (options.maxIterations < 1) {
+                            throw new IllegalArgumentException("Iteration limit must be positive: " +
+                                options.maxIterations);
+                        }
+                        break;
+                    case "--gauss-seidel":
+                        options.gaussSeidel = true;
+                        break;
+                    case "--push-tolerance":
+                        options.pushTolerance = Double.parseDouble(value(args, ++i));
+                        if (!(options.pushTolerance > 0)) {
+                            throw new IllegalArgumentException("Push tolerance must be positive: " +
+                                options.pushTolerance);
+                        }
+                        break;
+                    case "--walks":
+                        options.walks = Integer.parseInt(value(args, ++i));
+                        if (options.walks < 1) {
+                            throw new IllegalArgumentException("Walk count must be positive: " + options.walks);
+                        }
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--convert":
+                        options.convert = Paths.get(value(args, ++i));
+                        break;
+                    case "--graph":
+                        options.graph = Paths.get(value(args, ++i));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                }
+            }
+
+            if (options.convert != null && options.graph != null) {
+                throw new IllegalArgumentException("--convert and --graph cannot be combined");
+            }
+            if (options.gaussSeidel && options.epsilon == 0) {
+                throw new IllegalArgumentException("--gauss-seidel requires --epsilon");
+            }
+
+            return options;
+        }
+
+        private static String value(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+            }
+
+            return args[i];
         }
 
     }